@@ -0,0 +1,78 @@
+package hudson.plugins.virtualbox;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention for the connections to one host: many threads taking a connection out of the
+ * {@link VirtualBoxControlPool} of the host, with and without making a call with it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(16)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConnectionPoolBenchmark {
+
+  @Param({"1", "4", "16"})
+  public int poolSize;
+
+  /**
+   * Latency of a call to the host, in microseconds.
+   */
+  @Param({"0", "500"})
+  public long callMicros;
+
+  private FakeVirtualBoxCloud host;
+  private VirtualBoxControlPool pool;
+  private VirtualBoxMachine machine;
+
+  @Setup
+  public void setUp() throws InterruptedException {
+    host = new FakeVirtualBoxCloud(poolSize, 1, callMicros, 0);
+    pool = new VirtualBoxControlPool(host, poolSize, host.getConnector());
+    pool.prewarm(FakeVirtualBoxCloud.QUIET);
+    machine = host.getVirtualMachines().get(0);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.close();
+    VirtualBoxUtils.disconnectAll();
+    VirtualBoxMetrics.get().unregisterAll();
+  }
+
+  /**
+   * Only takes a connection and gives it back.
+   */
+  @Benchmark
+  public VirtualBoxControl checkout() throws InterruptedException {
+    VirtualBoxControl control = pool.checkout(FakeVirtualBoxCloud.QUIET);
+    pool.checkin(control, true);
+    return control;
+  }
+
+  /**
+   * A call holding the connection for the latency of the host, through {@link VirtualBoxUtils} like the plugin
+   * makes it.
+   */
+  @Benchmark
+  public String call() {
+    return VirtualBoxUtils.getMacAddress(machine, FakeVirtualBoxCloud.QUIET);
+  }
+}
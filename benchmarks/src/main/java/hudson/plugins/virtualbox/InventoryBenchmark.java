@@ -0,0 +1,79 @@
+package hudson.plugins.virtualbox;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of machines by name with {@link VirtualBoxCloud#getVirtualMachine(String)}, which the provisioning, the
+ * launcher and the retention strategies make all the time, against a full inventory pass over the host.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InventoryBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int machines;
+
+  /**
+   * Latency of a call to the host, in microseconds.
+   */
+  @Param({"500"})
+  public long callMicros;
+
+  private FakeVirtualBoxCloud host;
+  private String[] names;
+
+  @Setup
+  public void setUp() {
+    host = new FakeVirtualBoxCloud(VirtualBoxCloud.DEFAULT_CONNECTION_POOL_SIZE, machines, callMicros, 0);
+    List<VirtualBoxMachine> virtualMachines = host.getVirtualMachines();
+    names = new String[virtualMachines.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = virtualMachines.get(i).getName();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    VirtualBoxUtils.disconnectAll();
+    VirtualBoxMetrics.get().unregisterAll();
+  }
+
+  @Benchmark
+  public VirtualBoxMachine getVirtualMachine() {
+    return host.getVirtualMachine(names[ThreadLocalRandom.current().nextInt(names.length)]);
+  }
+
+  @Benchmark
+  public List<VirtualBoxMachine> getVirtualMachines() {
+    return host.getVirtualMachines();
+  }
+
+  /**
+   * One inventory pass, which is what a lookup costs without the cache.
+   */
+  @Benchmark
+  public List<VirtualBoxMachine> refreshVirtualMachinesList() {
+    return host.refreshVirtualMachinesList();
+  }
+}
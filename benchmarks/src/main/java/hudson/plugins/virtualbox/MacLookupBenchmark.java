@@ -0,0 +1,107 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the node of a booting machine by its MAC addresses, as {@link VirtualBoxPlugin#doGetSlaveAgent} and
+ * {@link VirtualBoxPlugin#doGetAgentEndpoint} do, with {@link VirtualBoxMacIndex} against asking the host for the
+ * address of one node after the other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MacLookupBenchmark {
+
+  /**
+   * Address of a network adapter no machine was defined with, like a bridge of a container runtime.
+   */
+  private static final String UNKNOWN_ADDRESS = "02:42:AC:11:00:02";
+
+  @Param({"10", "100", "1000"})
+  public int nodes;
+
+  /**
+   * Latency of a call to the host, in microseconds.
+   */
+  @Param({"0", "500"})
+  public long callMicros;
+
+  private FakeVirtualBoxCloud host;
+  private List<VirtualBoxMachine> machines;
+  private Map<String, VirtualBoxMachine> nodeMachines;
+  private Map<String, String> index;
+
+  @Setup
+  public void setUp() {
+    host = new FakeVirtualBoxCloud(VirtualBoxCloud.DEFAULT_CONNECTION_POOL_SIZE, nodes, callMicros, 0);
+    machines = host.getVirtualMachines();
+    nodeMachines = new LinkedHashMap<>();
+    for (VirtualBoxMachine machine : machines) {
+      nodeMachines.put("agent-" + machine.getName(), machine);
+    }
+    index = VirtualBoxMacIndex.index(nodeMachines);
+  }
+
+  @TearDown
+  public void tearDown() {
+    VirtualBoxUtils.disconnectAll();
+    VirtualBoxMetrics.get().unregisterAll();
+  }
+
+  private String randomAddress() {
+    return machines.get(ThreadLocalRandom.current().nextInt(machines.size())).getMacAddresses().get(0);
+  }
+
+  /**
+   * Asks the host for the address of every node until one matches.
+   */
+  @Benchmark
+  public String scan() {
+    String macAddress = randomAddress();
+    for (Map.Entry<String, VirtualBoxMachine> entry : nodeMachines.entrySet()) {
+      if (macAddress.equalsIgnoreCase(VirtualBoxUtils.getMacAddress(entry.getValue(), FakeVirtualBoxCloud.QUIET))) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Looks the addresses of all adapters of the machine up in the index.
+   */
+  @Benchmark
+  public String index() {
+    return VirtualBoxMacIndex.find(index, Arrays.asList(UNKNOWN_ADDRESS, randomAddress()));
+  }
+
+  /**
+   * Rebuilds the index from the machines of the last inventory pass.
+   */
+  @Benchmark
+  public Map<String, String> rebuildIndex() {
+    return VirtualBoxMacIndex.index(nodeMachines);
+  }
+}
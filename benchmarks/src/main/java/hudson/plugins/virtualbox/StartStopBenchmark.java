@@ -0,0 +1,120 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Many threads starting and stopping machines of one host at the same time, each thread with machines of its own
+ * as long as there are enough of them. Covers the active machine limit, the connection pool and the machine
+ * locks; the asynchronous variant covers the boot slots and the progress scheduler as well.
+ * <p>
+ * The progress scheduler polls every 500 milliseconds unless {@code VirtualBoxProgressScheduler.pollInterval}
+ * says otherwise, which the fork sets to 1 millisecond so that the simulated power up time is what is measured.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(32)
+@Fork(value = 1, jvmArgsAppend = "-Dhudson.plugins.virtualbox.VirtualBoxProgressScheduler.pollInterval=1")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StartStopBenchmark {
+
+  @Param({"64", "512"})
+  public int machines;
+
+  @Param({"4", "16"})
+  public int poolSize;
+
+  /**
+   * Latency of a call to the host, in microseconds.
+   */
+  @Param({"200"})
+  public long callMicros;
+
+  /**
+   * Time the host takes to power a machine up or down, in milliseconds.
+   */
+  @Param({"0", "5"})
+  public long powerMillis;
+
+  private FakeVirtualBoxCloud host;
+  private List<VirtualBoxMachine> virtualMachines;
+  private final AtomicInteger claimed = new AtomicInteger();
+
+  @Setup
+  public void setUp() {
+    host = new FakeVirtualBoxCloud(poolSize, machines, callMicros, powerMillis);
+    virtualMachines = host.getVirtualMachines();
+  }
+
+  @TearDown
+  public void tearDown() {
+    VirtualBoxUtils.disconnectAll();
+    VirtualBoxMetrics.get().unregisterAll();
+  }
+
+  /**
+   * Machines of one thread.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+    private final List<VirtualBoxMachine> machines = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setUp(StartStopBenchmark benchmark, BenchmarkParams params) {
+      List<VirtualBoxMachine> all = benchmark.virtualMachines;
+      int perThread = Math.max(1, all.size() / params.getThreads());
+      int first = benchmark.claimed.getAndIncrement() * perThread;
+      for (int i = 0; i < perThread; i++) {
+        // with fewer machines than threads, threads share machines and wait for their locks
+        machines.add(all.get((first + i) % all.size()));
+      }
+    }
+
+    VirtualBoxMachine next() {
+      VirtualBoxMachine machine = machines.get(next);
+      next = (next + 1) % machines.size();
+      return machine;
+    }
+  }
+
+  /**
+   * Starts and stops a machine, keeping a connection for as long as the host works on it.
+   */
+  @Benchmark
+  public long startStop(Cursor cursor) {
+    VirtualBoxMachine machine = cursor.next();
+    return VirtualBoxUtils.startVm(machine, "headless", FakeVirtualBoxCloud.QUIET)
+        + VirtualBoxUtils.stopVm(machine, "powerdown", FakeVirtualBoxCloud.QUIET);
+  }
+
+  /**
+   * Starts and stops a machine, giving the connection back to the pool while the host works on it.
+   */
+  @Benchmark
+  public long startStopAsync(Cursor cursor) {
+    VirtualBoxMachine machine = cursor.next();
+    return VirtualBoxUtils.startVmAsync(machine, "headless", FakeVirtualBoxCloud.QUIET).join()
+        + VirtualBoxUtils.stopVmAsync(machine, "powerdown", FakeVirtualBoxCloud.QUIET).join();
+  }
+}
@@ -0,0 +1,163 @@
+package hudson.plugins.virtualbox;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the agent needs to connect to Jenkins, as answered by the plugin for the MAC addresses of this machine.
+ */
+class AgentEndpoint {
+  private static final int CONNECT_TIMEOUT = 5 * 1000;
+
+  private static final int TIMEOUT = 30 * 1000;
+
+  private final String name;
+  private final String url;
+  private final String secret;
+  private final String tunnel;
+
+  AgentEndpoint(String name, String url, String secret, String tunnel) {
+    this.name = name;
+    this.url = url;
+    this.secret = secret;
+    this.tunnel = tunnel;
+  }
+
+  /**
+   * @param jenkinsUrl   URL of Jenkins, ending with a slash
+   * @param macAddresses MAC addresses of all network adapters of this machine
+   * @param cache        endpoint from the last boot, revalidated rather than downloaded again; updated with the
+   *                     answer
+   * @return endpoint of the node whose machine has one of the addresses, null if there is none or the plugin is too
+   *         old to tell
+   */
+  static AgentEndpoint fetch(String jenkinsUrl, List<String> macAddresses, BootstrapCache cache) throws IOException {
+    StringBuilder query = new StringBuilder();
+    for (String macAddress : macAddresses) {
+      query.append(query.length() == 0 ? "" : ",").append(macAddress);
+    }
+    URL url = new URL(jenkinsUrl + "plugin/virtualbox/getAgentEndpoint?macAddresses="
+        + URLEncoder.encode(query.toString(), "UTF-8"));
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT);
+    connection.setReadTimeout(TIMEOUT);
+    AgentEndpoint cached = cache.getEndpoint();
+    boolean revalidate = cached != null && cache.getEtag() != null && jenkinsUrl.equals(cached.url);
+    if (revalidate) {
+      connection.setRequestProperty("If-None-Match", cache.getEtag());
+    }
+    try {
+      int status = connection.getResponseCode();
+      if (revalidate && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        System.out.println("Agent endpoint from last boot is up to date");
+        return cached;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        System.out.println("No agent endpoint for " + query + ": HTTP " + status);
+        if (status == HttpURLConnection.HTTP_NOT_FOUND && cached != null && jenkinsUrl.equals(cached.url)) {
+          cache.clear();
+        }
+        return null;
+      }
+      try (InputStream is = connection.getInputStream()) {
+        AgentEndpoint endpoint = parse(is);
+        if (endpoint == null || endpoint.name == null) {
+          throw new IOException("Invalid agent endpoint from " + url);
+        }
+        if (endpoint.hasSecret()) {
+          cache.store(endpoint, connection.getHeaderField("ETag"));
+        }
+        return endpoint;
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Parses the answer of the plugin, or the one of the UDP broadcast service of Jenkins, which only has the URL.
+   *
+   * @return endpoint, without name unless the answer is from the plugin; null if the answer has no URL
+   */
+  static AgentEndpoint parse(InputStream answer) {
+    try {
+      DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+      // answers which are no XML are reported by the caller
+      builder.setErrorHandler(null);
+      Document dom = builder.parse(answer);
+      String url = text(dom, "url");
+      if (url == null) {
+        return null;
+      }
+      return new AgentEndpoint(text(dom, "name"), url.endsWith("/") ? url : url + "/", text(dom, "secret"),
+          text(dom, "tunnel"));
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static String text(Document dom, String element) {
+    NodeList nodes = dom.getElementsByTagName(element);
+    String text = nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+    return text == null || text.isEmpty() ? null : text;
+  }
+
+  /**
+   * @return name of the node, null if unknown
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * @return URL of Jenkins, ending with a slash
+   */
+  String getUrl() {
+    return url;
+  }
+
+  String getSecret() {
+    return secret;
+  }
+
+  /**
+   * @return tunnel through which the agent connects, null to connect directly
+   */
+  String getTunnel() {
+    return tunnel;
+  }
+
+  /**
+   * @return whether the agent can connect without the JNLP file of the node
+   */
+  boolean hasSecret() {
+    return name != null && secret != null;
+  }
+
+  /**
+   * @return arguments for {@code hudson.remoting.jnlp.Main}
+   */
+  String[] toArguments() {
+    List<String> args = new ArrayList<>();
+    args.add("-headless");
+    args.add("-url");
+    args.add(url);
+    if (tunnel != null) {
+      args.add("-tunnel");
+      args.add(tunnel);
+    }
+    args.add(secret);
+    args.add(name);
+    return args.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,120 @@
+package hudson.plugins.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+
+/**
+ * Keeps the endpoint of the agent between boots, so that a machine which booted before connects without discovery
+ * and without downloading its endpoint again.
+ * <p>
+ * The endpoint is revalidated on every boot with the ETag the plugin sent along, which costs one request without
+ * body while nothing changed. The file holds the secret of the agent and is only readable by its owner.
+ * </p>
+ */
+class BootstrapCache {
+  private final File file;
+
+  private AgentEndpoint endpoint;
+  private String etag;
+
+  BootstrapCache(File file) {
+    this.file = file;
+    load();
+  }
+
+  /**
+   * @return endpoint from the last boot, null if there is none
+   */
+  AgentEndpoint getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * @return ETag of the endpoint from the last boot, null if unknown
+   */
+  String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @param etag ETag the plugin sent with the endpoint, null if none
+   */
+  void store(AgentEndpoint endpoint, String etag) {
+    this.endpoint = endpoint;
+    this.etag = etag;
+    Properties properties = new Properties();
+    properties.setProperty("name", endpoint.getName());
+    properties.setProperty("url", endpoint.getUrl());
+    properties.setProperty("secret", endpoint.getSecret());
+    if (endpoint.getTunnel() != null) {
+      properties.setProperty("tunnel", endpoint.getTunnel());
+    }
+    if (etag != null) {
+      properties.setProperty("etag", etag);
+    }
+    try {
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Can't create " + dir);
+      }
+      File tmp = new File(dir, file.getName() + ".tmp");
+      Files.deleteIfExists(tmp.toPath());
+      Files.createFile(tmp.toPath());
+      restrict(tmp);
+      try (OutputStream os = Files.newOutputStream(tmp.toPath())) {
+        properties.store(os, "VirtualBox agent endpoint");
+      }
+      // replace the file in one step, so that a machine reset while writing leaves the old endpoint
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("Can't write " + file + ": " + e);
+    }
+  }
+
+  /**
+   * Forgets the endpoint, for example because Jenkins no longer knows it.
+   */
+  void clear() {
+    endpoint = null;
+    etag = null;
+    if (file.exists() && !file.delete()) {
+      System.out.println("Can't delete " + file);
+    }
+  }
+
+  private void load() {
+    if (!file.isFile()) {
+      return;
+    }
+    Properties properties = new Properties();
+    try (InputStream is = Files.newInputStream(file.toPath())) {
+      properties.load(is);
+    } catch (IOException e) {
+      System.out.println("Can't read " + file + ": " + e);
+      return;
+    }
+    AgentEndpoint cached = new AgentEndpoint(properties.getProperty("name"), properties.getProperty("url"),
+        properties.getProperty("secret"), properties.getProperty("tunnel"));
+    if (cached.hasSecret() && cached.getUrl() != null) {
+      endpoint = cached;
+      etag = properties.getProperty("etag");
+    }
+  }
+
+  private static void restrict(File file) throws IOException {
+    try {
+      Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+    } catch (UnsupportedOperationException e) {
+      // not a POSIX file system
+      if (!file.setReadable(false, false) || !file.setReadable(true, true)) {
+        System.out.println("Can't restrict access to " + file);
+      }
+    }
+  }
+}
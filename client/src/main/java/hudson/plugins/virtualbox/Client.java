@@ -1,13 +1,14 @@
 package hudson.plugins.virtualbox;
 
-import org.w3c.dom.Document;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.*;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 
 
 /**
@@ -16,79 +17,121 @@ import java.util.Enumeration;
  * @author Evgeny Mandrikov
  */
 public class Client {
-  private String macAddress;
-  private final DatagramSocket socket;
+  /**
+   * Comma separated Jenkins controllers, {@code host[:port]}, which are probed in addition to the broadcasts.
+   */
+  private static final String CONTROLLERS = System.getProperty(Client.class.getName() + ".controllers", "");
+
+  /**
+   * Directory which keeps what is needed to connect faster on the next boot.
+   */
+  private static final File CACHE_DIR = new File(System.getProperty(Client.class.getName() + ".cacheDir",
+      new File(System.getProperty("user.home"), ".jenkins-virtualbox").getPath()));
+
+  private final List<String> macAddresses;
+  private final Discovery discovery;
+  private final BootstrapCache cache;
 
   public Client() throws IOException {
-    socket = new DatagramSocket();
-    socket.setBroadcast(true);
-    this.macAddress = getMacAddress();
+    this(CONTROLLERS.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(CONTROLLERS.split("\\s*,\\s*")));
   }
 
-  public void start() throws Exception {
-    DatagramPacket packet = discover();
+  /**
+   * @param controllers Jenkins controllers, {@code host[:port]}, which are probed in addition to the broadcasts
+   */
+  public Client(List<String> controllers) throws IOException {
+    this.macAddresses = getMacAddresses();
+    this.discovery = new Discovery(macAddresses, controllers, new File(CACHE_DIR, "url"));
+    this.cache = new BootstrapCache(new File(CACHE_DIR, "agent.properties"));
+  }
 
-    InputStream is = new ByteArrayInputStream(packet.getData(), 0, packet.getLength());
-    Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(is);
-    String url = dom.getElementsByTagName("url").item(0).getTextContent();
+  public void start() throws Exception {
+    AgentEndpoint endpoint = null;
+    String url = null;
+    if (cache.getEndpoint() != null) {
+      // the Jenkins of the last boot, which answers the revalidation if it is still there
+      url = cache.getEndpoint().getUrl();
+      endpoint = fetchEndpoint(url);
+    }
+    if (endpoint == null) {
+      try {
+        url = discovery.discover();
+        endpoint = discovery.getEndpoint();
+        if (endpoint != null && endpoint.hasSecret()) {
+          cache.store(endpoint, null);
+        } else {
+          endpoint = fetchEndpoint(url);
+        }
+        if (endpoint != null && endpoint.getName() != null) {
+          // some other Jenkins may have answered the probes, only come back to one which knows this machine
+          discovery.remember(url);
+        }
+      } finally {
+        discovery.close();
+      }
+    }
 
     System.out.println("Jenkins: " + url);
-    hudson.remoting.Launcher.main("-jnlpUrl", getJnlp(url));
+    if (endpoint != null && endpoint.hasSecret()) {
+      System.out.println("Agent: " + endpoint.getName());
+      hudson.remoting.jnlp.Main.main(endpoint.toArguments());
+    } else {
+      // older plugins only know the redirect to the JNLP file
+      hudson.remoting.Launcher.main("-jnlpUrl", getJnlp(url));
+    }
+  }
+
+  /**
+   * @return endpoint of the agent, null if Jenkins does not tell
+   */
+  private AgentEndpoint fetchEndpoint(String url) {
+    try {
+      return AgentEndpoint.fetch(url, macAddresses, cache);
+    } catch (IOException e) {
+      System.out.println("Can't get agent endpoint from " + url + ": " + e);
+      return null;
+    }
   }
 
   public String getJnlp(String hudsonUrl) {
-    return hudsonUrl + "plugin/virtualbox/getSlaveAgent?macAddress=" + macAddress;
+    return hudsonUrl + "plugin/virtualbox/getSlaveAgent?macAddress=" + (macAddresses.isEmpty() ? null
+        : macAddresses.get(0));
   }
 
   /**
-   * @return MAC Address, null if not found
+   * @return MAC Addresses of all network interfaces except loopback ones, those which are up first
    */
-  private String getMacAddress() {
+  private static List<String> getMacAddresses() {
+    List<String> up = new ArrayList<>();
+    List<String> down = new ArrayList<>();
     try {
-      Enumeration interfaces = NetworkInterface.getNetworkInterfaces();
-      while (interfaces.hasMoreElements()) {
-        NetworkInterface ni = (NetworkInterface) interfaces.nextElement();
+      Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+      while (interfaces != null && interfaces.hasMoreElements()) {
+        NetworkInterface ni = interfaces.nextElement();
         byte[] mac = ni.getHardwareAddress();
-        if (mac != null) {
+        if (mac != null && mac.length > 0 && !ni.isLoopback()) {
           StringBuilder sb = new StringBuilder();
           for (byte aMac : mac) {
             sb.append(String.format("%02X", aMac));
           }
           String macAddress = sb.toString();
           System.out.println("MAC Address for interface '" + ni.getDisplayName() + "': " + macAddress);
-          return macAddress;
+          if (!up.contains(macAddress) && !down.contains(macAddress)) {
+            (ni.isUp() ? up : down).add(macAddress);
+          }
         }
       }
     } catch (SocketException e) {
       // ignore
     }
-    return null;
-  }
-
-  protected void sendBroadcast() throws IOException {
-    DatagramPacket packet = new DatagramPacket(new byte[0], 0);
-    packet.setAddress(InetAddress.getByName("255.255.255.255"));
-    packet.setPort(Integer.getInteger("hudson.udp", 33848));
-    socket.send(packet);
-  }
-
-  protected DatagramPacket discover() throws IOException {
-    sendBroadcast();
-    long limit = System.currentTimeMillis() + 5 * 1000;
-    try {
-      socket.setSoTimeout(Math.max(1, (int) (limit - System.currentTimeMillis())));
-
-      DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
-      socket.receive(packet);
-
-      return packet;
-    } catch (SocketTimeoutException e) {
-      // Timeout
-      return null;
-    }
+    up.addAll(down);
+    return up;
   }
 
+  /**
+   * @param args Jenkins controllers, {@code host[:port]}, which are probed in addition to the broadcasts
+   */
   public static void main(String[] args) throws Exception {
-    new Client().start();
+    (args.length > 0 ? new Client(Arrays.asList(args)) : new Client()).start();
   }
 }
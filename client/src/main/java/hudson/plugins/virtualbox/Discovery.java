@@ -0,0 +1,279 @@
+package hudson.plugins.virtualbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Finds the URL of Jenkins.
+ * <p>
+ * Probes carry the MAC addresses of the machine. The VirtualBox plugin answers only probes from machines of its nodes,
+ * with the endpoint of the agent, while the UDP broadcast service of Jenkins answers any probe with just the URL.
+ * </p>
+ * <p>
+ * The URL of the last Jenkins which knew the node of this machine is kept on disk and used right away if Jenkins still
+ * answers there. Otherwise probes
+ * are sent to the broadcast address of every network interface which is up and to the configured controllers, until
+ * a Jenkins answers. The time between probes grows exponentially with some jitter, so a network which comes up late
+ * is still found, and many machines booting together do not probe in lockstep.
+ * </p>
+ */
+class Discovery implements Closeable {
+  private static final int PORT = Integer.getInteger("hudson.udp", 33848);
+
+  private static final int VIRTUALBOX_PORT = Integer.getInteger(Discovery.class.getName() + ".port", 33849);
+
+  private static final String PROBE_PREFIX = "virtualbox-probe ";
+
+  /**
+   * How long to wait for an answer of the plugin once Jenkins answered with just the URL.
+   */
+  private static final int ENDPOINT_WAIT = 500;
+
+  private static final int INITIAL_BACKOFF = Integer.getInteger(Discovery.class.getName() + ".initialBackoff", 1000);
+
+  private static final int MAX_BACKOFF = Integer.getInteger(Discovery.class.getName() + ".maxBackoff", 30 * 1000);
+
+  /**
+   * Number of probes before giving up, 0 to probe until Jenkins answers.
+   */
+  private static final int MAX_ATTEMPTS = Integer.getInteger(Discovery.class.getName() + ".maxAttempts", 0);
+
+  private static final int CHECK_TIMEOUT = 2000;
+
+  private final DatagramSocket socket;
+  private final byte[] probe;
+  private final List<String> controllers;
+  private final File cache;
+  private final Random random = new Random();
+
+  private AgentEndpoint endpoint;
+
+  /**
+   * @param macAddresses MAC addresses of all network adapters of this machine
+   * @param controllers  host names of Jenkins controllers, optionally followed by {@code :port}, which are probed
+   *                     directly in addition to the broadcasts
+   * @param cache        file which keeps the last URL which knew the node, null to always probe
+   */
+  Discovery(List<String> macAddresses, List<String> controllers, File cache) throws IOException {
+    StringBuilder probe = new StringBuilder(PROBE_PREFIX);
+    for (String macAddress : macAddresses) {
+      probe.append(probe.length() == PROBE_PREFIX.length() ? "" : ",").append(macAddress);
+    }
+    this.probe = probe.toString().getBytes(StandardCharsets.US_ASCII);
+    this.controllers = controllers;
+    this.cache = cache;
+    socket = new DatagramSocket();
+    socket.setBroadcast(true);
+  }
+
+  /**
+   * @return URL of Jenkins, ending with a slash, which is only kept for the next boot once it is {@link #remember}ed
+   * @throws IOException if no Jenkins answered within {@link #MAX_ATTEMPTS} probes
+   */
+  String discover() throws IOException {
+    String url = readCache();
+    if (url != null) {
+      if (isJenkins(url)) {
+        System.out.println("Using Jenkins from last boot");
+        return url;
+      }
+      System.out.println("Jenkins from last boot does not answer at " + url);
+    }
+    for (int attempt = 0; MAX_ATTEMPTS <= 0 || attempt < MAX_ATTEMPTS; attempt++) {
+      sendProbes();
+      AgentEndpoint answer = receive(backoff(attempt));
+      if (answer != null) {
+        if (answer.getName() != null) {
+          endpoint = answer;
+        }
+        return answer.getUrl();
+      }
+    }
+    throw new IOException("No Jenkins answered " + MAX_ATTEMPTS + " probes");
+  }
+
+  /**
+   * @return endpoint of the agent if the plugin answered the probe, null otherwise
+   */
+  AgentEndpoint getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * @return milliseconds to wait for an answer to the given attempt, half of it random
+   */
+  private int backoff(int attempt) {
+    int window = attempt >= 30 ? MAX_BACKOFF : (int) Math.min(MAX_BACKOFF, (long) INITIAL_BACKOFF << attempt);
+    return window / 2 + random.nextInt(window / 2 + 1);
+  }
+
+  private void sendProbes() {
+    // interfaces and names are looked up for every attempt, the network may just have come up
+    Set<SocketAddress> targets = new LinkedHashSet<>();
+    for (InetAddress broadcast : getBroadcastAddresses()) {
+      targets.add(new InetSocketAddress(broadcast, PORT));
+      targets.add(new InetSocketAddress(broadcast, VIRTUALBOX_PORT));
+    }
+    for (String controller : controllers) {
+      try {
+        int colon = controller.lastIndexOf(':');
+        if (colon < 0) {
+          addResolved(targets, controller, new InetSocketAddress(controller, PORT));
+          addResolved(targets, controller, new InetSocketAddress(controller, VIRTUALBOX_PORT));
+        } else {
+          addResolved(targets, controller, new InetSocketAddress(controller.substring(0, colon),
+              Integer.parseInt(controller.substring(colon + 1))));
+        }
+      } catch (IllegalArgumentException e) {
+        System.out.println("Invalid controller " + controller);
+      }
+    }
+    for (SocketAddress target : targets) {
+      try {
+        socket.send(new DatagramPacket(probe, probe.length, target));
+      } catch (IOException e) {
+        System.out.println("Can't probe " + target + ": " + e);
+      }
+    }
+  }
+
+  private static void addResolved(Set<SocketAddress> targets, String controller, InetSocketAddress target) {
+    if (target.isUnresolved()) {
+      System.out.println("Unknown controller " + controller);
+    } else {
+      targets.add(target);
+    }
+  }
+
+  /**
+   * @return broadcast addresses of all interfaces which are up, and the limited broadcast address
+   */
+  private static Set<InetAddress> getBroadcastAddresses() {
+    Set<InetAddress> addresses = new LinkedHashSet<>();
+    try {
+      Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+      while (interfaces != null && interfaces.hasMoreElements()) {
+        NetworkInterface ni = interfaces.nextElement();
+        if (!ni.isUp() || ni.isLoopback()) {
+          continue;
+        }
+        for (InterfaceAddress address : ni.getInterfaceAddresses()) {
+          if (address.getBroadcast() != null) {
+            addresses.add(address.getBroadcast());
+          }
+        }
+      }
+    } catch (SocketException e) {
+      // ignore
+    }
+    try {
+      addresses.add(InetAddress.getByName("255.255.255.255"));
+    } catch (UnknownHostException e) {
+      // can't happen for a literal address
+    }
+    return addresses;
+  }
+
+  /**
+   * @return answer of the plugin within the given time, or else the first answer with just the URL; null if there is
+   *         none
+   */
+  private AgentEndpoint receive(int millis) throws IOException {
+    long limit = System.currentTimeMillis() + millis;
+    AgentEndpoint first = null;
+    DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+    while (true) {
+      long remaining = limit - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return first;
+      }
+      try {
+        socket.setSoTimeout((int) remaining);
+        packet.setLength(2048);
+        socket.receive(packet);
+      } catch (SocketTimeoutException e) {
+        return first;
+      }
+      String sender = packet.getAddress().getHostAddress();
+      AgentEndpoint answer = AgentEndpoint.parse(
+          new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+      if (answer == null) {
+        System.out.println("Ignoring answer without URL from " + sender);
+      } else if (answer.getName() != null) {
+        System.out.println("VirtualBox plugin answered from " + sender);
+        return answer;
+      } else if (first == null) {
+        System.out.println("Jenkins answered from " + sender);
+        first = answer;
+        // the plugin may answer right after the broadcast service of Jenkins
+        limit = Math.min(limit, System.currentTimeMillis() + ENDPOINT_WAIT);
+      }
+    }
+  }
+
+  /**
+   * @return whether Jenkins answers at the given URL
+   */
+  private static boolean isJenkins(String url) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setConnectTimeout(CHECK_TIMEOUT);
+      connection.setReadTimeout(CHECK_TIMEOUT);
+      try {
+        connection.getResponseCode();
+        return connection.getHeaderField("X-Jenkins") != null;
+      } finally {
+        connection.disconnect();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private String readCache() {
+    if (cache == null || !cache.isFile()) {
+      return null;
+    }
+    try {
+      String url = new String(Files.readAllBytes(cache.toPath()), StandardCharsets.UTF_8).trim();
+      return url.isEmpty() ? null : url;
+    } catch (IOException e) {
+      System.out.println("Can't read " + cache + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Keeps the URL for the next boot. Only a Jenkins which knows the node of this machine should be remembered, any
+   * Jenkins on the network answers the probes.
+   */
+  void remember(String url) {
+    if (cache == null) {
+      return;
+    }
+    try {
+      File dir = cache.getAbsoluteFile().getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Can't create " + dir);
+      }
+      // replace the file in one step, so that a machine reset while writing leaves the old URL
+      File tmp = new File(dir, cache.getName() + ".tmp");
+      Files.write(tmp.toPath(), url.getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("Can't write " + cache + ": " + e);
+    }
+  }
+
+  @Override
+  public void close() {
+    socket.close();
+  }
+}
@@ -0,0 +1,216 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the active machine limit of a {@link VirtualBoxCloud}.
+ * <p>
+ * Every running machine holds one permit, keyed by its name, so admitting a machine which holds a permit already
+ * takes no second one and releasing a machine twice gives back only one. Machines wait for a permit in the order
+ * in which they asked, and give up after {@link #TIMEOUT}.
+ * </p>
+ * <p>
+ * A machine which was stopped behind the back of Jenkins would keep its permit forever, so permits of machines
+ * which the host reports as stopped are released with every refresh of the inventory.
+ * </p>
+ * <p>
+ * The permits outlive reconfigurations of the cloud, which replace the {@link VirtualBoxCloud} instance but not the
+ * machines running on it.
+ * </p>
+ */
+final class VirtualBoxAdmission {
+
+  /**
+   * Longest wait for a permit.
+   */
+  static final long TIMEOUT = TimeUnit.MINUTES.toMillis(
+      Long.getLong(VirtualBoxAdmission.class.getName() + ".timeout", 10));
+
+  /**
+   * Permits taken more recently than this are kept even if the inventory says the machine is stopped, because the
+   * inventory may have been read before the machine was started.
+   */
+  private static final long RECONCILE_GRACE = TimeUnit.MINUTES.toMillis(2);
+
+  /**
+   * Outcome of {@link #acquire(String)}.
+   */
+  enum Result {
+    /** The machine took a new permit, which must be released when it stops or fails to start. */
+    ADMITTED,
+    /** The machine holds a permit already, it stays with the machine. */
+    ALREADY_ADMITTED,
+    /** No permit became available in time. */
+    TIMED_OUT
+  }
+
+  private static final ConcurrentMap<String, VirtualBoxAdmission> ADMISSIONS = new ConcurrentHashMap<>();
+
+  /**
+   * Admission time of every machine holding a permit, by machine name. Guarded by this.
+   */
+  private final Map<String, Long> holders = new HashMap<>();
+  private final Deque<Thread> queue = new ArrayDeque<>();
+  private final long timeout;
+  private volatile int limit;
+
+  private long admitted;
+  private long timedOut;
+  private long totalWait;
+  private long maxWait;
+
+  VirtualBoxAdmission(int limit, long timeout) {
+    this.limit = limit;
+    this.timeout = timeout;
+  }
+
+  /**
+   * @return admission of the cloud, with the limit of its current configuration
+   */
+  static VirtualBoxAdmission of(VirtualBoxCloud cloud) {
+    VirtualBoxAdmission admission = ADMISSIONS.computeIfAbsent(cloud.name,
+        name -> new VirtualBoxAdmission(cloud.getActiveMachineLimit(), TIMEOUT));
+    admission.setLimit(cloud.getActiveMachineLimit());
+    return admission;
+  }
+
+  /**
+   * @param limit maximum number of running machines, 0 or less for no limit
+   */
+  synchronized void setLimit(int limit) {
+    if (this.limit != limit) {
+      this.limit = limit;
+      // a higher limit may let waiters in
+      notifyAll();
+    }
+  }
+
+  /**
+   * Waits for a permit for the machine, behind all machines which asked before.
+   *
+   * @throws InterruptedException if interrupted while waiting, no permit is taken in that case
+   */
+  synchronized Result acquire(String machineName) throws InterruptedException {
+    if (holders.containsKey(machineName)) {
+      return Result.ALREADY_ADMITTED;
+    }
+    long started = System.currentTimeMillis();
+    long deadline = started + timeout;
+    Thread current = Thread.currentThread();
+    queue.addLast(current);
+    try {
+      while (queue.peekFirst() != current || !hasRoom()) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          timedOut++;
+          return Result.TIMED_OUT;
+        }
+        wait(remaining);
+        if (holders.containsKey(machineName)) {
+          // started by someone else while we waited
+          return Result.ALREADY_ADMITTED;
+        }
+      }
+      holders.put(machineName, System.currentTimeMillis());
+      long waited = System.currentTimeMillis() - started;
+      admitted++;
+      totalWait += waited;
+      maxWait = Math.max(maxWait, waited);
+      return Result.ADMITTED;
+    } finally {
+      queue.remove(current);
+      // the next waiter may be at the head now
+      notifyAll();
+    }
+  }
+
+  /**
+   * Gives back the permit of the machine, if it holds one.
+   */
+  synchronized void release(String machineName) {
+    if (null != holders.remove(machineName)) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Releases the permits of machines which the host reports as stopped.
+   *
+   * @param machines machines read from the host in one pass
+   */
+  synchronized void reconcile(Collection<VirtualBoxMachine> machines) {
+    long now = System.currentTimeMillis();
+    boolean released = false;
+    for (VirtualBoxMachine machine : machines) {
+      Long since = holders.get(machine.getName());
+      if (null != since && now - since > RECONCILE_GRACE && isStopped(machine.getState())) {
+        holders.remove(machine.getName());
+        released = true;
+      }
+    }
+    if (released) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return number of permits which are not held, {@link Integer#MAX_VALUE} without a limit
+   */
+  synchronized int getAvailable() {
+    return limit < 1 ? Integer.MAX_VALUE : Math.max(0, limit - holders.size());
+  }
+
+  synchronized int getActive() {
+    return holders.size();
+  }
+
+  /**
+   * @return number of machines waiting for a permit
+   */
+  synchronized int getQueueLength() {
+    return queue.size();
+  }
+
+  /**
+   * @return number of machines which got a permit after asking for one
+   */
+  synchronized long getAdmitted() {
+    return admitted;
+  }
+
+  /**
+   * @return number of machines which gave up waiting for a permit
+   */
+  synchronized long getTimedOut() {
+    return timedOut;
+  }
+
+  /**
+   * @return average wait for a permit in milliseconds, 0 if none was granted yet
+   */
+  synchronized long getAverageWait() {
+    return 0 == admitted ? 0 : totalWait / admitted;
+  }
+
+  /**
+   * @return longest wait for a permit in milliseconds
+   */
+  synchronized long getMaxWait() {
+    return maxWait;
+  }
+
+  private boolean hasRoom() {
+    return limit < 1 || holders.size() < limit;
+  }
+
+  private static boolean isStopped(String state) {
+    return "PoweredOff".equals(state) || "Aborted".equals(state) || "Saved".equals(state);
+  }
+}
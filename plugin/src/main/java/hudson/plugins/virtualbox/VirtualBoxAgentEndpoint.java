@@ -0,0 +1,67 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Util;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.SlaveComputer;
+
+import jenkins.model.Jenkins;
+
+/**
+ * What the agent of a {@link VirtualBoxSlave} needs to connect, so that the client in the machine starts the agent
+ * right away instead of following a redirect to the JNLP file of the node and fetching it.
+ */
+final class VirtualBoxAgentEndpoint {
+
+  private final String nodeName;
+  private final String url;
+  private final String secret;
+  private final String tunnel;
+
+  private VirtualBoxAgentEndpoint(String nodeName, String url, String secret, String tunnel) {
+    this.nodeName = nodeName;
+    this.url = url;
+    this.secret = secret;
+    this.tunnel = tunnel;
+  }
+
+  /**
+   * @param withSecret whether to include the secret of the agent, only for callers allowed to connect the agent
+   */
+  static VirtualBoxAgentEndpoint of(SlaveComputer computer, boolean withSecret) {
+    String tunnel = null;
+    ComputerLauncher launcher = computer.getLauncher();
+    if (launcher instanceof VirtualBoxComputerLauncher) {
+      launcher = ((VirtualBoxComputerLauncher) launcher).getCore();
+    }
+    if (launcher instanceof JNLPLauncher) {
+      tunnel = Util.fixEmptyAndTrim(((JNLPLauncher) launcher).tunnel);
+    }
+    return new VirtualBoxAgentEndpoint(computer.getName(), Jenkins.getInstance().getRootUrl(),
+        withSecret ? computer.getJnlpMac() : null, tunnel);
+  }
+
+  String getNodeName() {
+    return nodeName;
+  }
+
+  /**
+   * @return the endpoint as {@code <agent>} element, with {@code <name>}, {@code <url>} and the optional
+   *         {@code <secret>} and {@code <tunnel>}
+   */
+  String toXml() {
+    StringBuilder xml = new StringBuilder("<agent>");
+    append(xml, "name", nodeName);
+    append(xml, "url", url);
+    append(xml, "secret", secret);
+    append(xml, "tunnel", tunnel);
+    return xml.append("</agent>").toString();
+  }
+
+  private static void append(StringBuilder xml, String element, String value) {
+    if (null != value) {
+      xml.append('<').append(element).append('>').append(Util.xmlEscape(value)).append("</").append(element)
+          .append('>');
+    }
+  }
+}
@@ -0,0 +1,236 @@
+package hudson.plugins.virtualbox;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Staggers the power ups of the machines of a {@link VirtualBoxCloud}, so that a burst of builds does not boot all
+ * machines at once and saturate the disks of the host.
+ * <p>
+ * Only a few machines of a host are powering up or restoring at a time, the others wait for a boot slot in the
+ * order of the builds they are started for: a machine whose agent can run the build at the front of the build queue
+ * goes first. Machines started for no queued build, like warm ups, go last.
+ * </p>
+ * <p>
+ * The number of slots follows the measured boot times. Every machine remembers its fastest boot, linked clones the
+ * fastest boot of any clone of their template, since each clone boots only once. A boot which takes
+ * much longer than that means the host is overloaded and costs a slot, a boot close to it while machines are waiting
+ * adds one. This is independent of the active machine limit, which counts running machines rather than booting
+ * ones.
+ * </p>
+ */
+final class VirtualBoxBootScheduler {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxBootScheduler.class.getName());
+
+  /**
+   * Priority of machines started for no queued build.
+   */
+  static final int LOWEST_PRIORITY = Integer.MAX_VALUE;
+
+  private static final int INITIAL_SLOTS = Integer.getInteger(
+      VirtualBoxBootScheduler.class.getName() + ".initialSlots", 2);
+
+  private static final int MAX_SLOTS = Integer.getInteger(
+      VirtualBoxBootScheduler.class.getName() + ".maxSlots", 8);
+
+  /**
+   * Longest wait for a boot slot, the machine boots anyway afterwards, so a lost slot can't block a host for good.
+   */
+  private static final long MAX_WAIT = TimeUnit.MINUTES.toMillis(
+      Long.getLong(VirtualBoxBootScheduler.class.getName() + ".maxWaitMinutes", 10));
+
+  /**
+   * Boots up to this many times slower than the fastest one of the machine count as healthy.
+   */
+  private static final double HEALTHY_RATIO = 1.5;
+
+  /**
+   * Boots this many times slower than the fastest one of the machine count as overloaded.
+   */
+  private static final double OVERLOADED_RATIO = 2.5;
+
+  private static final double RATIO_WEIGHT = 0.3;
+
+  private static final int MAX_BASELINES = 256;
+
+  private static final ConcurrentMap<String, VirtualBoxBootScheduler> SCHEDULERS = new ConcurrentHashMap<>();
+
+  private final String hostName;
+  private final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+
+  /**
+   * Fastest boot in milliseconds by source machine, for restores and cold boots separately. Guarded by this.
+   */
+  private final Map<String, Long> baselines = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_BASELINES;
+    }
+  };
+
+  private int slots;
+  private int booting;
+  private long sequence;
+  private double ratio = 1;
+
+  VirtualBoxBootScheduler(String hostName, int slots) {
+    this.hostName = hostName;
+    this.slots = slots;
+  }
+
+  static VirtualBoxBootScheduler of(VirtualBoxCloud cloud) {
+    return SCHEDULERS.computeIfAbsent(cloud.name,
+        name -> new VirtualBoxBootScheduler(name, Math.max(1, Math.min(INITIAL_SLOTS, MAX_SLOTS))));
+  }
+
+  /**
+   * Waits for a boot slot, behind machines with a higher priority and machines of the same priority which asked
+   * before.
+   *
+   * @param source   machine whose boots this one is compared with, the template of a linked clone and the machine
+   *                 itself otherwise
+   * @param priority lower values go first, see {@link #priorityOf(Node)}
+   * @return slot which must be given back with {@link #finished(Slot, boolean)} once the machine runs or failed
+   * @throws InterruptedException if interrupted while waiting, no slot is taken in that case
+   */
+  synchronized Slot acquire(String machineName, String source, boolean restore, int priority) throws InterruptedException {
+    Waiter waiter = new Waiter(priority, sequence++);
+    waiting.add(waiter);
+    long deadline = System.currentTimeMillis() + MAX_WAIT;
+    try {
+      while (waiting.peek() != waiter || booting >= slots) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          LOG.log(Level.WARNING, "No boot slot on {0} for {1} in time, booting anyway", new Object[]{hostName,
+              machineName});
+          break;
+        }
+        wait(remaining);
+      }
+      booting++;
+      // other machines still waiting show whether more slots would be used
+      return new Slot(source + (restore ? "#restore" : "#boot"), System.currentTimeMillis(), waiting.size() > 1);
+    } finally {
+      waiting.remove(waiter);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Gives back a boot slot and adapts the number of slots to the time the boot took.
+   *
+   * @param succeeded whether the machine runs now, only successful boots are measured
+   */
+  synchronized void finished(Slot slot, boolean succeeded) {
+    booting--;
+    if (succeeded) {
+      long millis = Math.max(1, System.currentTimeMillis() - slot.started);
+      Long baseline = baselines.get(slot.key);
+      if (null == baseline || millis < baseline) {
+        baselines.put(slot.key, millis);
+      }
+      if (null != baseline) {
+        adapt((double) millis / baseline, slot.contended);
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * @param contended whether other machines were waiting when the boot began
+   */
+  private void adapt(double latest, boolean contended) {
+    ratio = RATIO_WEIGHT * latest + (1 - RATIO_WEIGHT) * ratio;
+    int before = slots;
+    if (ratio > OVERLOADED_RATIO && slots > 1) {
+      slots--;
+      // give the smaller number of slots a chance before judging it
+      ratio = HEALTHY_RATIO;
+    } else if (ratio < HEALTHY_RATIO && contended && slots < MAX_SLOTS) {
+      slots++;
+    }
+    if (before != slots) {
+      LOG.log(Level.INFO, "Boot slots of {0}: {1}, boots take {2} times as long as the fastest ones",
+          new Object[]{hostName, slots, ratio});
+    }
+  }
+
+  synchronized int getSlots() {
+    return slots;
+  }
+
+  synchronized int getBooting() {
+    return booting;
+  }
+
+  /**
+   * @return number of machines waiting for a boot slot
+   */
+  synchronized int getQueueLength() {
+    return waiting.size();
+  }
+
+  /**
+   * @return position in the build queue of the first build the node can run, {@link #LOWEST_PRIORITY} if there is
+   *         none
+   */
+  static int priorityOf(Node node) {
+    if (null == node) {
+      return LOWEST_PRIORITY;
+    }
+    // buildable items come in the order in which they get executors
+    List<Queue.BuildableItem> items = Queue.getInstance().getBuildableItems();
+    for (int i = 0; i < items.size(); i++) {
+      Label label = items.get(i).getAssignedLabel();
+      if (null == label ? Node.Mode.NORMAL == node.getMode() : label.contains(node)) {
+        return i;
+      }
+    }
+    return LOWEST_PRIORITY;
+  }
+
+  /**
+   * Boot slot taken by a machine.
+   */
+  static final class Slot {
+    private final String key;
+    private final long started;
+    private final boolean contended;
+
+    private Slot(String key, long started, boolean contended) {
+      this.key = key;
+      this.started = started;
+      this.contended = contended;
+    }
+  }
+
+  private static final class Waiter implements Comparable<Waiter> {
+    private final int priority;
+    private final long sequence;
+
+    Waiter(int priority, long sequence) {
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Waiter other) {
+      if (priority != other.priority) {
+        return Integer.compare(priority, other.priority);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -7,6 +7,8 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.tasks.BuildWrapper;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
 
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.ListBoxModel;
@@ -17,6 +19,8 @@ import org.kohsuke.stapler.QueryParameter;
  * @author Evgeny Mandrikov
  */
 public class VirtualBoxBuildWrapper extends BuildWrapper {
+  private static final Logger LOG = Logger.getLogger(VirtualBoxBuildWrapper.class.getName());
+
   private String hostName;
   private String virtualMachineName;
 
@@ -31,14 +35,19 @@ public class VirtualBoxBuildWrapper extends BuildWrapper {
   public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
     VirtualBoxMachine machine = VirtualBoxPlugin.getVirtualBoxMachine(getHostName(), getVirtualMachineName());
     listener.getLogger().println(Messages.VirtualBoxLauncher_startVM(machine));
-    VirtualBoxUtils.startVm(machine, "headless", new VirtualBoxTaskListenerLog(listener, "[VirtualBox] ")); // TODO type
+    try {
+      VirtualBoxUtils.startVmAsync(machine, "headless", new VirtualBoxTaskListenerLog(listener, "[VirtualBox] ")).get(); // TODO type
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
 
     class EnvironmentImpl extends Environment {
       @Override
       public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
         VirtualBoxMachine machine = VirtualBoxPlugin.getVirtualBoxMachine(getHostName(), getVirtualMachineName());
         listener.getLogger().println(Messages.VirtualBoxLauncher_stopVM(machine));
-        VirtualBoxUtils.stopVm(machine, "pause", new VirtualBoxTaskListenerLog(listener, "[VirtualBox] "));
+        // the build is done, let the host save the machine in the background
+        VirtualBoxUtils.stopVmAsync(machine, "pause", new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
         return true;
       }
     }
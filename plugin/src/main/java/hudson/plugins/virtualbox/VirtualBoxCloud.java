@@ -1,20 +1,34 @@
 package hudson.plugins.virtualbox;
 
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
 import hudson.util.Secret;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 /**
@@ -31,62 +45,370 @@ public class VirtualBoxCloud extends Cloud {
   private final String username;
   private final Secret password;
   private final Integer activeMachineLimit;
-  private final Semaphore activeMachines;
+  private final Integer connectionPoolSize;
+
+  /**
+   * Number of web service sessions opened to the host when none is configured.
+   */
+  public static final int DEFAULT_CONNECTION_POOL_SIZE = 4;
+
+  /**
+   * Seconds for which the list of virtual machines is served without refreshing it, null for the default.
+   */
+  private Integer inventoryTtl;
+
+  /**
+   * Time to live of the list of virtual machines when none is configured, in seconds.
+   */
+  public static final int DEFAULT_INVENTORY_TTL = 60;
+
+  /**
+   * Templates of agents provisioned on demand, null if none are configured.
+   */
+  private List<VirtualBoxTemplate> templates;
+
+  /**
+   * Longest wait for a provisioned agent to connect once its machine runs.
+   */
+  private static final long LAUNCH_TIMEOUT = TimeUnit.MINUTES.toMillis(
+      Long.getLong(VirtualBoxCloud.class.getName() + ".launchTimeout", 5));
+
+  /**
+   * Number of agents launched at a time when none is configured.
+   */
+  public static final int DEFAULT_MAX_CONCURRENT_LAUNCHES = 4;
+
+  /**
+   * Agents launched at a time, null for the default.
+   */
+  private Integer maxConcurrentLaunches;
+
+  /**
+   * Machines whose agents are being provisioned or which are being warmed up, mapped to their template machine.
+   */
+  private transient ConcurrentMap<String, String> provisioning = new ConcurrentHashMap<>();
 
   /**
    * Lazily computed list of virtual machines from this host.
    */
-  private transient List<VirtualBoxMachine> virtualBoxMachines = null;
+  private transient volatile VirtualBoxInventory inventory = null;
+
+  private transient volatile VirtualBoxWarmPool warmPool = null;
 
   @DataBoundConstructor
-  public VirtualBoxCloud(String displayName, String url, String username, Secret password, Integer activeMachineLimit) {
+  public VirtualBoxCloud(String displayName, String url, String username, Secret password, Integer activeMachineLimit,
+                         Integer connectionPoolSize) {
     super(displayName);
     this.url = url;
     this.username = username;
     this.password = password;
-    if (null == activeMachineLimit) {
+    if (null == activeMachineLimit || activeMachineLimit < 1) {
       this.activeMachineLimit = -1;
-      this.activeMachines = null;
     }
     else {
-      if (activeMachineLimit < 1) {
-        this.activeMachineLimit = -1;
-        this.activeMachines = null;
-      }
-      else {
-        this.activeMachineLimit = activeMachineLimit;
-        this.activeMachines = new Semaphore(this.activeMachineLimit);
-      }
+      this.activeMachineLimit = activeMachineLimit;
     }
+    if (null == connectionPoolSize || connectionPoolSize < 1) {
+      this.connectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
+    }
+    else {
+      this.connectionPoolSize = connectionPoolSize;
+    }
+  }
 
+  public VirtualBoxCloud(String displayName, String url, String username, Secret password, Integer activeMachineLimit) {
+    this(displayName, url, username, password, activeMachineLimit, null);
   }
 
+  /**
+   * Provisions agents from the templates matching the label, as long as the active machine limit allows. A
+   * template without a snapshot stands for one virtual machine, so it provides at most one agent at a time. A
+   * template with a snapshot provides a linked clone per agent, up to its maximum number of instances.
+   * <p>
+   * When other clouds can run the label too, agents are only planned while this host is the least loaded one, see
+   * {@link VirtualBoxPlacement}.
+   * </p>
+   */
   @Override
   public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
-    return Collections.emptyList();
+    List<NodeProvisioner.PlannedNode> result = new ArrayList<>();
+    int capacity = getAvailableMachines();
+    VirtualBoxWarmPool warmPool = getWarmPool();
+    VirtualBoxPlacement placement = VirtualBoxPlacement.get();
+    List<VirtualBoxTemplate> candidates = new ArrayList<>();
+    for (VirtualBoxTemplate template : getTemplates()) {
+      if (template.matches(label)) {
+        candidates.add(template);
+      }
+    }
+    // restoring a saved machine is much faster than booting one
+    candidates.sort(Comparator.comparing(template -> !warmPool.isWarm(template.getVirtualMachineName())));
+    for (VirtualBoxTemplate template : candidates) {
+      VirtualBoxMachine source = getVirtualMachine(template.getVirtualMachineName());
+      long memorySize = null == source ? 0 : source.getMemorySize();
+      while (excessWorkload > 0 && capacity > 0 && placement.isBestHost(this, label, memorySize)) {
+        String virtualMachineName = reserveMachine(template);
+        if (null == virtualMachineName) {
+          break;
+        }
+        if (!template.isLinkedClone()) {
+          warmPool.claimed(template, warmPool.isWarm(virtualMachineName));
+        }
+        String nodeName = template.isLinkedClone() ? virtualMachineName : name + "-" + virtualMachineName;
+        LOG.log(Level.INFO, "Provisioning {0} for label {1}", new Object[]{nodeName, label});
+        placement.launchStarted(this, memorySize);
+        long started = System.currentTimeMillis();
+        Future<Node> future = Computer.threadPoolForRemoting.submit(() -> {
+          // failed launches count as slow as possible, so that a broken host is avoided
+          long latency = LAUNCH_TIMEOUT;
+          try {
+            Node node = launchAgent(nodeName, template, virtualMachineName);
+            latency = System.currentTimeMillis() - started;
+            return node;
+          } finally {
+            release(virtualMachineName);
+            placement.launchFinished(this, memorySize, latency);
+          }
+        });
+        result.add(new NodeProvisioner.PlannedNode(nodeName, future, template.getNumExecutors()));
+        excessWorkload -= template.getNumExecutors();
+        capacity--;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return machine reserved for a new agent of the template, the name of a new clone for linked clone templates,
+   *         null if the template can't provide another agent
+   */
+  private String reserveMachine(VirtualBoxTemplate template) {
+    if (!template.isLinkedClone()) {
+      return reserve(template.getVirtualMachineName(), template.getVirtualMachineName())
+          ? template.getVirtualMachineName() : null;
+    }
+    synchronized (provisioning) {
+      if (countClones(template) >= template.getMaxInstances()) {
+        return null;
+      }
+      String cloneName = template.getVirtualMachineName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+      return reserve(cloneName, template.getVirtualMachineName()) ? cloneName : null;
+    }
+  }
+
+  /**
+   * @return number of linked clones of the template which are provisioned or being provisioned, each counted once
+   *     although its agent is added before its provisioning ends
+   */
+  private int countClones(VirtualBoxTemplate template) {
+    Set<String> clones = new HashSet<>();
+    for (Node node : Jenkins.getInstance().getNodes()) {
+      if (node instanceof VirtualBoxCloudSlave) {
+        VirtualBoxCloudSlave slave = (VirtualBoxCloudSlave) node;
+        if (name.equals(slave.getCloudName()) && template.getVirtualMachineName().equals(slave.getTemplateName())
+            && slave.isLinkedClone()) {
+          clones.add(slave.getVirtualMachineName());
+        }
+      }
+    }
+    for (Map.Entry<String, String> entry : provisioning.entrySet()) {
+      if (template.getVirtualMachineName().equals(entry.getValue())
+          && !template.getVirtualMachineName().equals(entry.getKey())) {
+        clones.add(entry.getKey());
+      }
+    }
+    return clones.size();
+  }
+
+  /**
+   * @return whether a template matching the label has a machine which is not in use or may get another clone
+   */
+  boolean hasFreeMachine(Label label) {
+    for (VirtualBoxTemplate template : getTemplates()) {
+      if (template.matches(label) && (template.isLinkedClone()
+          ? countClones(template) < template.getMaxInstances() : !isInUse(template.getVirtualMachineName()))) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override
   public boolean canProvision(Label label) {
+    for (VirtualBoxTemplate template : getTemplates()) {
+      if (template.matches(label)) {
+        return true;
+      }
+    }
     return false;
   }
 
+  /**
+   * Adds an agent for the template and waits for it to come online. For linked clone templates the clone is
+   * created first.
+   *
+   * @throws IOException if the agent did not come online, it is removed again in that case
+   */
+  private Node launchAgent(String nodeName, VirtualBoxTemplate template, String virtualMachineName)
+      throws Exception {
+    if (template.isLinkedClone()) {
+      VirtualBoxMachine source = getVirtualMachine(template.getVirtualMachineName());
+      if (null == source) {
+        throw new IOException("No machine " + template.getVirtualMachineName() + " on " + name);
+      }
+      String id = VirtualBoxUtils.cloneVm(source, template.getSnapshotName(), virtualMachineName,
+          new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+      if (null == id) {
+        throw new IOException("Unable to clone " + template.getVirtualMachineName());
+      }
+      // the launcher looks the clone up right away, the registration event may still be on its way
+      machineRegistered(id, virtualMachineName, true);
+    }
+    VirtualBoxCloudSlave slave = new VirtualBoxCloudSlave(nodeName, this, template, virtualMachineName);
+    Jenkins.getInstance().addNode(slave);
+    Computer computer = slave.toComputer();
+    try {
+      if (null == computer) {
+        throw new IOException("No computer for " + nodeName);
+      }
+      // the launcher returns once the machine runs and the agent had a chance to connect
+      computer.connect(false).get();
+      long deadline = System.currentTimeMillis() + LAUNCH_TIMEOUT;
+      while (!computer.isOnline() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+      }
+      if (!computer.isOnline()) {
+        throw new IOException("Agent " + nodeName + " did not come online");
+      }
+      return slave;
+    } catch (Exception e) {
+      slave.terminate();
+      throw e;
+    }
+  }
+
+  /**
+   * Reserves a machine for provisioning or warming it up.
+   *
+   * @param templateName machine of the template the machine belongs to
+   * @return false if the machine is in use or reserved already
+   */
+  boolean reserve(String virtualMachineName, String templateName) {
+    return !isInUse(virtualMachineName) && null == provisioning.putIfAbsent(virtualMachineName, templateName);
+  }
 
-  public synchronized List<VirtualBoxMachine> refreshVirtualMachinesList() {
-    virtualBoxMachines = VirtualBoxUtils.getMachines(this, new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
-    return virtualBoxMachines;
+  void release(String virtualMachineName) {
+    provisioning.remove(virtualMachineName);
   }
 
-  public synchronized VirtualBoxMachine getVirtualMachine(String virtualMachineName) {
-    if (null == virtualBoxMachines) {
-      refreshVirtualMachinesList();
+  /**
+   * @return whether a node of this host, static or provisioned, uses or is about to use the machine
+   */
+  private boolean isInUse(String virtualMachineName) {
+    if (provisioning.containsKey(virtualMachineName)) {
+      return true;
     }
-    for (VirtualBoxMachine machine: virtualBoxMachines) {
-      if (virtualMachineName.equals(machine.getName())) {
-        return machine;
+    for (Node node : Jenkins.getInstance().getNodes()) {
+      if (node instanceof VirtualBoxSlave) {
+        VirtualBoxSlave slave = (VirtualBoxSlave) node;
+        if (name.equals(slave.getHostName()) && virtualMachineName.equals(slave.getVirtualMachineName())) {
+          return true;
+        }
       }
     }
-    return null;
+    return false;
+  }
+
+  /**
+   * @return virtual machine templates from which agents are provisioned
+   */
+  public List<VirtualBoxTemplate> getTemplates() {
+    if (null == templates) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(templates);
+  }
+
+  @DataBoundSetter
+  public void setTemplates(List<VirtualBoxTemplate> templates) {
+    this.templates = null == templates ? null : new ArrayList<>(templates);
+  }
+
+
+  /**
+   * Fetches the virtual machines from the host, bypassing the cache.
+   */
+  public List<VirtualBoxMachine> refreshVirtualMachinesList() {
+    return new ArrayList<>(getInventory().refresh().values());
+  }
+
+  /**
+   * @return virtual machines of this host, possibly as old as {@link #getInventoryTtl()}
+   */
+  public List<VirtualBoxMachine> getVirtualMachines() {
+    return getInventory().getMachines();
+  }
+
+  /**
+   * @return virtual machines of this host as last fetched, null if they were never fetched; never talks to the host
+   */
+  List<VirtualBoxMachine> getCachedVirtualMachines() {
+    return getInventory().getCachedMachines();
+  }
+
+  public VirtualBoxMachine getVirtualMachine(String virtualMachineName) {
+    return getInventory().getMachine(virtualMachineName);
+  }
+
+  void machineRegistered(String machineId, String name, boolean registered) {
+    getInventory().machineRegistered(machineId, name, registered);
+  }
+
+  /**
+   * @return number of provisioned agents whose machine was restored from the warm pool
+   */
+  public long getWarmPoolHits() {
+    return getWarmPool().getHits();
+  }
+
+  /**
+   * @return number of provisioned agents of templates kept warm whose machine had to be booted
+   */
+  public long getWarmPoolMisses() {
+    return getWarmPool().getMisses();
+  }
+
+  /**
+   * @return share of warm pool hits, 0 if no agent was provisioned from a template kept warm
+   */
+  public double getWarmPoolHitRate() {
+    return getWarmPool().getHitRate();
+  }
+
+  VirtualBoxWarmPool getWarmPool() {
+    VirtualBoxWarmPool result = warmPool;
+    if (null == result) {
+      synchronized (this) {
+        result = warmPool;
+        if (null == result) {
+          warmPool = result = new VirtualBoxWarmPool(this);
+        }
+      }
+    }
+    return result;
+  }
+
+  private VirtualBoxInventory getInventory() {
+    VirtualBoxInventory result = inventory;
+    if (null == result) {
+      synchronized (this) {
+        result = inventory;
+        if (null == result) {
+          inventory = result = new VirtualBoxInventory(this);
+        }
+      }
+    }
+    return result;
   }
 
   @Extension
@@ -107,7 +429,7 @@ public class VirtualBoxCloud extends Cloud {
     ) {
       LOG.log(Level.INFO, "Testing connection to {0} with username {1}", new Object[]{url, username});
       try {
-        VirtualBoxUtils.getMachines(new VirtualBoxCloud("testConnection", url, username, password,
+        VirtualBoxUtils.testConnection(new VirtualBoxCloud("testConnection", url, username, password,
                         null), new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
         LOG.log(Level.INFO, "Successfully connected to " + url + "!");
         return FormValidation.ok(Messages.VirtualBoxHost_success());
@@ -128,18 +450,111 @@ public class VirtualBoxCloud extends Cloud {
 
   public Secret getPassword() { return password; }
 
-  public void incrementActiveMachines() throws InterruptedException {
-    if (null != activeMachines) {
-      this.activeMachines.acquire();
+  /**
+   * @return maximum number of concurrent web service sessions to this host
+   */
+  public int getConnectionPoolSize() {
+    // configurations saved before the pool existed have no value
+    if (null == connectionPoolSize || connectionPoolSize < 1) {
+      return DEFAULT_CONNECTION_POOL_SIZE;
     }
-    else { return; }
+    return connectionPoolSize;
   }
 
-  public void decrementActiveMachines() {
-    if (null != activeMachines) {
-      this.activeMachines.release();
+  /**
+   * @return seconds for which the list of virtual machines is served without refreshing it
+   */
+  public int getInventoryTtl() {
+    if (null == inventoryTtl || inventoryTtl < 0) {
+      return DEFAULT_INVENTORY_TTL;
     }
-    else { return; }
+    return inventoryTtl;
+  }
+
+  @DataBoundSetter
+  public void setInventoryTtl(Integer inventoryTtl) {
+    this.inventoryTtl = inventoryTtl;
+  }
+
+  long getInventoryTtlMillis() {
+    return TimeUnit.SECONDS.toMillis(getInventoryTtl());
+  }
+
+  /**
+   * @return maximum number of agents of this host which are launched at the same time
+   */
+  public int getMaxConcurrentLaunches() {
+    if (null == maxConcurrentLaunches || maxConcurrentLaunches < 1) {
+      return DEFAULT_MAX_CONCURRENT_LAUNCHES;
+    }
+    return maxConcurrentLaunches;
+  }
+
+  @DataBoundSetter
+  public void setMaxConcurrentLaunches(Integer maxConcurrentLaunches) {
+    this.maxConcurrentLaunches = maxConcurrentLaunches;
+  }
+
+  /**
+   * @return maximum number of machines of this host running at a time, -1 for no limit
+   */
+  public int getActiveMachineLimit() {
+    return null == activeMachineLimit || activeMachineLimit < 1 ? -1 : activeMachineLimit;
+  }
+
+  /**
+   * @return number of machines which may still be started before the active machine limit is reached
+   */
+  public int getAvailableMachines() {
+    return getAdmission().getAvailable();
+  }
+
+  /**
+   * @return number of machines started by Jenkins which are running
+   */
+  public int getActiveMachines() {
+    return getAdmission().getActive();
+  }
+
+  /**
+   * @return number of machines waiting for the active machine limit to let them start
+   */
+  public int getAdmissionQueueLength() {
+    return getAdmission().getQueueLength();
+  }
+
+  /**
+   * @return number of machines which were not started because the active machine limit did not let them in time
+   */
+  public long getAdmissionTimeouts() {
+    return getAdmission().getTimedOut();
+  }
+
+  /**
+   * @return average time machines waited for the active machine limit to let them start, in milliseconds
+   */
+  public long getAdmissionAverageWait() {
+    return getAdmission().getAverageWait();
+  }
+
+  VirtualBoxAdmission getAdmission() {
+    return VirtualBoxAdmission.of(this);
+  }
+
+  VirtualBoxBootScheduler getBootScheduler() {
+    return VirtualBoxBootScheduler.of(this);
+  }
+
+  /**
+   * @return opens the connections to this host, null to connect to its web service
+   */
+  VirtualBoxControlPool.Connector getConnector() {
+    return null;
+  }
+
+  protected Object readResolve() {
+    provisioning = new ConcurrentHashMap<>();
+    return this;
   }
 
   @Override
@@ -0,0 +1,98 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Queue;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Removes a {@link VirtualBoxCloudSlave} once it was idle for a while, or right after its first build if it is
+ * for a single use. Other agents are left alone.
+ */
+public class VirtualBoxCloudRetentionStrategy extends RetentionStrategy<VirtualBoxComputer> implements ExecutorListener {
+
+  private final int idleMinutes;
+  private boolean singleUse;
+
+  @DataBoundConstructor
+  public VirtualBoxCloudRetentionStrategy(int idleMinutes) {
+    this.idleMinutes = idleMinutes;
+  }
+
+  public VirtualBoxCloudRetentionStrategy(int idleMinutes, boolean singleUse) {
+    this(idleMinutes);
+    this.singleUse = singleUse;
+  }
+
+  public int getIdleMinutes() {
+    return idleMinutes;
+  }
+
+  public boolean isSingleUse() {
+    return singleUse;
+  }
+
+  @DataBoundSetter
+  public void setSingleUse(boolean singleUse) {
+    this.singleUse = singleUse;
+  }
+
+  public void taskAccepted(Executor executor, Queue.Task task) {
+    if (singleUse && executor.getOwner() instanceof VirtualBoxComputer) {
+      // no other executor may take a second build
+      ((VirtualBoxComputer) executor.getOwner()).setAcceptingTasks(false);
+    }
+  }
+
+  public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+    done(executor);
+  }
+
+  public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+    done(executor);
+  }
+
+  private void done(Executor executor) {
+    Computer computer = executor.getOwner();
+    if (singleUse && computer.getNode() instanceof VirtualBoxCloudSlave) {
+      VirtualBoxCloudSlave slave = (VirtualBoxCloudSlave) computer.getNode();
+      // the executor is still finishing the build
+      Computer.threadPoolForRemoting.submit(slave::terminate);
+    }
+  }
+
+  @Override
+  public synchronized long check(VirtualBoxComputer computer) {
+    if (!(computer.getNode() instanceof VirtualBoxCloudSlave)) {
+      return 1;
+    }
+    if (computer.isIdle() && !computer.isConnecting()) {
+      long idleMillis = System.currentTimeMillis() - computer.getIdleStartMilliseconds();
+      if (idleMillis > TimeUnit.MINUTES.toMillis(idleMinutes)) {
+        ((VirtualBoxCloudSlave) computer.getNode()).terminate();
+      }
+    }
+    return 1;
+  }
+
+  @Override
+  public void start(VirtualBoxComputer computer) {
+    // provisioning connects the agent
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+    @Override
+    public String getDisplayName() {
+      return Messages.VirtualBoxCloudRetentionStrategy_displayName();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * {@link VirtualBoxSlave} created by {@link VirtualBoxCloud#provision} from a {@link VirtualBoxTemplate}. It is
+ * removed again once it stayed idle for the time configured in the template, or, on a linked clone, after its
+ * first build. The clone is deleted once it is stopped.
+ */
+public class VirtualBoxCloudSlave extends VirtualBoxSlave {
+  private static final Logger LOG = Logger.getLogger(VirtualBoxCloudSlave.class.getName());
+
+  private final String cloudName;
+  private final String templateName;
+
+  public VirtualBoxCloudSlave(String name, VirtualBoxCloud cloud, VirtualBoxTemplate template)
+      throws Descriptor.FormException, IOException {
+    this(name, cloud, template, template.getVirtualMachineName());
+  }
+
+  /**
+   * @param virtualMachineName machine of the agent, the template machine or a linked clone of it
+   */
+  public VirtualBoxCloudSlave(String name, VirtualBoxCloud cloud, VirtualBoxTemplate template,
+                              String virtualMachineName) throws Descriptor.FormException, IOException {
+    super(
+        name,
+        "Provisioned from " + template.getVirtualMachineName() + " on " + cloud.getDisplayName(),
+        template.getRemoteFS(),
+        String.valueOf(template.getNumExecutors()),
+        null == template.getLabelString() ? Mode.NORMAL : Mode.EXCLUSIVE,
+        template.getLabelString(),
+        new JNLPLauncher(),
+        new VirtualBoxCloudRetentionStrategy(template.getIdleMinutes(), template.isLinkedClone()),
+        Collections.<NodeProperty<?>>emptyList(),
+        cloud.getDisplayName(),
+        virtualMachineName,
+        template.getVirtualMachineType(),
+        // a clone is deleted anyway, there is no point in saving its state
+        template.isLinkedClone() ? "powerdown" : template.getVirtualMachineStopMode()
+    );
+    this.cloudName = cloud.getDisplayName();
+    this.templateName = template.getVirtualMachineName();
+    getLauncher().setDestroyOnDisconnect(template.isLinkedClone());
+  }
+
+  /**
+   * @return name of the cloud which provisioned this agent
+   */
+  public String getCloudName() {
+    return cloudName;
+  }
+
+  /**
+   * @return machine of the template this agent was provisioned from
+   */
+  public String getTemplateName() {
+    return templateName;
+  }
+
+  /**
+   * @return whether the agent runs on a linked clone, which is deleted with the agent
+   */
+  public boolean isLinkedClone() {
+    return getLauncher().isDestroyOnDisconnect();
+  }
+
+  /**
+   * Removes this agent from Jenkins. The machine is stopped once the agent disconnected, or right away with the
+   * stop mode of the template if the agent never connected.
+   */
+  void terminate() {
+    LOG.log(Level.INFO, "Removing agent {0}", getNodeName());
+    Computer computer = toComputer();
+    boolean connected = null != computer && computer.isOnline();
+    try {
+      Jenkins.getInstance().removeNode(this);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to remove agent " + getNodeName(), e);
+      return;
+    }
+    if (!connected) {
+      // no disconnect follows, so the launcher does not stop the machine or clean up the clone
+      VirtualBoxMachine machine = VirtualBoxPlugin.getVirtualBoxMachine(getHostName(), getVirtualMachineName());
+      if (null != machine) {
+        getLauncher().stopMachine(machine);
+      }
+    }
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends SlaveDescriptor {
+    @Override
+    public String getDisplayName() {
+      return Messages.VirtualBoxCloudSlave_displayName();
+    }
+
+    @Override
+    public boolean isInstantiable() {
+      // only created by the cloud
+      return false;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package hudson.plugins.virtualbox;
 
 import hudson.model.Slave;
+import hudson.slaves.OfflineCause;
 import hudson.slaves.SlaveComputer;
 import java.io.IOException;
 import org.kohsuke.stapler.HttpResponse;
@@ -9,6 +10,25 @@ import org.kohsuke.stapler.HttpResponse;
  * @author Evgeny Mandrikov
  */
 public class VirtualBoxComputer extends SlaveComputer {
+
+  /**
+   * Whether the machine was suspended by {@link VirtualBoxIdleSuspendStrategy} and not resumed since.
+   */
+  private volatile boolean suspended;
+
+  /**
+   * Stop mode for the next disconnect, null to use the one of the node.
+   */
+  private volatile String suspendMode;
+  private volatile long suspendRequested;
+
+  private long suspends;
+  private long suspendMillis;
+  private long lastSuspendMillis;
+  private long resumes;
+  private long resumeMillis;
+  private long lastResumeMillis;
+
   public VirtualBoxComputer(Slave slave) {
     super(slave);
   }
@@ -24,4 +44,91 @@ public class VirtualBoxComputer extends SlaveComputer {
     // TODO powerOff on delete
     return super.doDoDelete();
   }
+
+  /**
+   * Disconnects the agent and suspends its machine.
+   *
+   * @param mode stop mode used instead of the one of the node, like "save"
+   */
+  void suspend(String mode) {
+    suspendMode = mode;
+    suspendRequested = System.currentTimeMillis();
+    suspended = true;
+    disconnect(OfflineCause.create(Messages._VirtualBoxIdleSuspendStrategy_suspended()));
+  }
+
+  /**
+   * Marks the agent as suspended without touching its machine, so that it is resumed when needed.
+   */
+  void markSuspended() {
+    suspended = true;
+  }
+
+  boolean isSuspended() {
+    return suspended;
+  }
+
+  /**
+   * @return stop mode requested by {@link #suspend(String)}, null if the agent was not suspended; the request is
+   *         cleared
+   */
+  String takeSuspendMode() {
+    String mode = suspendMode;
+    suspendMode = null;
+    return mode;
+  }
+
+  /**
+   * Counts a suspended machine.
+   */
+  synchronized void suspended() {
+    lastSuspendMillis = System.currentTimeMillis() - suspendRequested;
+    suspendMillis += lastSuspendMillis;
+    suspends++;
+  }
+
+  /**
+   * Counts a resumed agent, if it was suspended.
+   *
+   * @param launchStarted time the launch of the agent began
+   */
+  synchronized void resumed(long launchStarted) {
+    if (!suspended) {
+      return;
+    }
+    suspended = false;
+    lastResumeMillis = System.currentTimeMillis() - launchStarted;
+    resumeMillis += lastResumeMillis;
+    resumes++;
+  }
+
+  public synchronized long getSuspendCount() {
+    return suspends;
+  }
+
+  /**
+   * @return average time from disconnecting the agent until its machine was suspended, in milliseconds
+   */
+  public synchronized long getAverageSuspendMillis() {
+    return 0 == suspends ? 0 : suspendMillis / suspends;
+  }
+
+  public synchronized long getLastSuspendMillis() {
+    return lastSuspendMillis;
+  }
+
+  public synchronized long getResumeCount() {
+    return resumes;
+  }
+
+  /**
+   * @return average time from resuming the machine until the agent was online, in milliseconds
+   */
+  public synchronized long getAverageResumeMillis() {
+    return 0 == resumes ? 0 : resumeMillis / resumes;
+  }
+
+  public synchronized long getLastResumeMillis() {
+    return lastResumeMillis;
+  }
 }
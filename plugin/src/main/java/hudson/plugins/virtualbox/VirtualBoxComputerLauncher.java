@@ -2,12 +2,17 @@ package hudson.plugins.virtualbox;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,7 +28,22 @@ import java.util.logging.Logger;
 public class VirtualBoxComputerLauncher extends ComputerLauncher {
   private static final Logger LOG = Logger.getLogger(VirtualBoxComputerLauncher.class.getName());
 
-  private static final int SECOND = 1000;
+  /**
+   * Longest wait for the guest to accept the launcher which connects the agent.
+   */
+  private static final long READY_TIMEOUT = TimeUnit.SECONDS.toMillis(
+      Long.getLong(VirtualBoxComputerLauncher.class.getName() + ".readyTimeoutSeconds", 300));
+
+  /**
+   * The launcher is tried even though the probes don't report the guest as ready once this has passed, for guests
+   * without Guest Additions.
+   */
+  private static final long PROBE_GRACE = TimeUnit.SECONDS.toMillis(
+      Long.getLong(VirtualBoxComputerLauncher.class.getName() + ".probeGraceSeconds", 60));
+
+  private static final long MIN_BACKOFF = 500;
+
+  private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(10);
 
   private ComputerLauncher delegate;
 
@@ -35,6 +55,11 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
 
   private String virtualMachineStopMode;
 
+  /**
+   * Whether the machine is deleted once it is stopped, for linked clones.
+   */
+  private boolean destroyOnDisconnect;
+
   @DataBoundConstructor
   public VirtualBoxComputerLauncher(ComputerLauncher delegate, String hostName, String virtualMachineName,
       String virtualMachineType, String virtualMachineStopMode) {
@@ -48,9 +73,11 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
   @Override
   public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
     log(listener, "Launching node " + virtualMachineName);
+    long launchStarted = System.currentTimeMillis();
+    VirtualBoxMachine machine;
     try {
       // Connect to VirtualBox host
-      VirtualBoxMachine machine = VirtualBoxPlugin.getVirtualBoxMachine(hostName, virtualMachineName);
+      machine = VirtualBoxPlugin.getVirtualBoxMachine(hostName, virtualMachineName);
       if (machine == null) {
         listener.fatalError("Unable to find specified machine");
         return;
@@ -61,7 +88,15 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
       // Don't launch if the the machine is already running
 
 
-      long result = VirtualBoxUtils.startVm(machine, virtualMachineType, new VirtualBoxTaskListenerLog(listener, "[VirtualBox] "));
+      // machines of agents which are needed first boot first when many are started at once
+      Node node = computer.getNode();
+      int priority = VirtualBoxBootScheduler.priorityOf(node);
+      // a linked clone boots once, its boot time is comparable to those of the other clones of its template
+      String source = node instanceof VirtualBoxCloudSlave && ((VirtualBoxCloudSlave) node).isLinkedClone()
+          ? ((VirtualBoxCloudSlave) node).getTemplateName() : virtualMachineName;
+      // the power up is tracked by the progress scheduler, this thread just waits for the result
+      long result = VirtualBoxUtils.startVmAsync(machine, virtualMachineType, source, priority,
+          new VirtualBoxTaskListenerLog(listener, "[VirtualBox] ")).get();
       if (result != 0) {
         listener.fatalError("Unable to launch");
         return;
@@ -73,30 +108,90 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
       return;
     }
     // Stage 2 of the launch. Called after the VirtualBox instance comes up.
-    boolean successful = false;
+    VirtualBoxLogger log = new VirtualBoxTaskListenerLog(listener, "[VirtualBox] ");
+    try (VirtualBoxMetrics.Timer timer = VirtualBoxMetrics.get().host(hostName).start("launch.ready")) {
+      if (awaitAgent(computer, listener, machine, log)) {
+        timer.succeeded();
+        resumed(computer, launchStarted);
+      }
+    }
+  }
+
+  /**
+   * Hands over to the delegate launcher once the guest is ready.
+   *
+   * @return true, if the agent is online
+   */
+  private boolean awaitAgent(SlaveComputer computer, TaskListener listener, VirtualBoxMachine machine,
+                             VirtualBoxLogger log) throws InterruptedException {
+    long started = System.currentTimeMillis();
+    long deadline = started + READY_TIMEOUT;
+    long backoff = MIN_BACKOFF;
+    if (!getCore().isLaunchSupported()) {
+      // the agent connects by itself once the guest is up
+      delegateLaunch(computer, listener);
+      while (!computer.isOnline() && System.currentTimeMillis() < deadline) {
+        long seen = VirtualBoxUtils.getChangeCount(machine);
+        VirtualBoxUtils.awaitChange(machine, seen, Math.min(backoff, deadline - System.currentTimeMillis()));
+        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+      }
+      if (!computer.isOnline()) {
+        log(listener, "Agent did not connect within " + TimeUnit.MILLISECONDS.toSeconds(READY_TIMEOUT) + " seconds");
+      }
+      return computer.isOnline();
+    }
+    List<VirtualBoxReadinessProbe> probes = VirtualBoxReadinessProbe.forLauncher(getCore());
+    log(listener, "Waiting for " + probes + " before stage 2 launcher");
     int attempt = 0;
-    while (!successful) {
-      attempt++;
-      log(listener, "Sleep before stage 2 launcher, attempt " + attempt);
-      Thread.sleep(10 * SECOND);
-      successful = delegateLaunch(computer, listener);
-      if (!successful && attempt > 10) {
-        log(listener, "Maximum number of attempts reached");
-        return;
+    while (true) {
+      // guest property changes wake us up early
+      long seen = VirtualBoxUtils.getChangeCount(machine);
+      long now = System.currentTimeMillis();
+      if (isReady(probes, machine, log) || now - started > PROBE_GRACE) {
+        attempt++;
+        log(listener, "Guest ready after " + TimeUnit.MILLISECONDS.toSeconds(now - started)
+            + " seconds, stage 2 launcher attempt " + attempt);
+        if (delegateLaunch(computer, listener)) {
+          return true;
+        }
       }
+      now = System.currentTimeMillis();
+      if (now >= deadline) {
+        log(listener, "Guest not ready within " + TimeUnit.MILLISECONDS.toSeconds(READY_TIMEOUT) + " seconds");
+        return false;
+      }
+      VirtualBoxUtils.awaitChange(machine, seen, Math.min(backoff, deadline - now));
+      backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+  }
+
+  private static void resumed(SlaveComputer computer, long launchStarted) {
+    if (computer instanceof VirtualBoxComputer) {
+      ((VirtualBoxComputer) computer).resumed(launchStarted);
     }
   }
 
+  private static boolean isReady(List<VirtualBoxReadinessProbe> probes, VirtualBoxMachine machine,
+                                 VirtualBoxLogger log) {
+    for (VirtualBoxReadinessProbe probe : probes) {
+      if (!probe.isReady(machine, log)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * @param computer {@link hudson.model.Computer} for which agent should be launched
    * @param listener The progress of the launch, as well as any error, should be sent to this listener.
    * @return true, if successfully launched, otherwise false
    */
   protected boolean delegateLaunch(SlaveComputer computer, TaskListener listener) {
-    try {
+    try (VirtualBoxMetrics.Timer timer = VirtualBoxMetrics.get().host(hostName).start("launch.stage2")) {
       log(listener, "Starting stage 2 launcher (" + delegate.getClass().getSimpleName() + ")");
       getCore().launch(computer, listener);
       log(listener, "Stage 2 launcher completed");
+      timer.finished(computer.isOnline());
       return computer.isOnline();
     } catch (IOException e) {
       log(listener, "Unable to launch: " + e.getMessage());
@@ -132,16 +227,58 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
         listener.fatalError("Unable to find specified machine");
         return;
       }
+      // an idle agent is suspended rather than stopped the usual way
+      String suspendMode = computer instanceof VirtualBoxComputer
+          ? ((VirtualBoxComputer) computer).takeSuspendMode() : null;
       log(listener, Messages.VirtualBoxLauncher_stopVM(machine));
-      long result = VirtualBoxUtils.stopVm(machine, virtualMachineStopMode, new VirtualBoxTaskListenerLog(listener, "[VirtualBox] "));
-      if (result != 0) {
-        listener.fatalError("Unable to stop");
+      // don't hold up the disconnect while the host saves the machine, the listener is closed once we return
+      if (null == suspendMode) {
+        stopMachine(machine);
+      } else {
+        VirtualBoxComputer suspended = (VirtualBoxComputer) computer;
+        stopMachine(machine, suspendMode).thenAccept(result -> {
+          if (result == 0) {
+            suspended.suspended();
+          }
+        });
       }
     } catch (Throwable e) {
       listener.fatalError(e.getMessage(), e);
     }
   }
 
+  /**
+   * Stops the machine in the background, and deletes it afterwards if it is a linked clone.
+   */
+  void stopMachine(VirtualBoxMachine machine) {
+    stopMachine(machine, virtualMachineStopMode);
+  }
+
+  private CompletableFuture<Long> stopMachine(VirtualBoxMachine machine, String stopMode) {
+    VirtualBoxSystemLog log = new VirtualBoxSystemLog(LOG, "[VirtualBox] ");
+    return VirtualBoxUtils.stopVmAsync(machine, stopMode, log)
+        .whenCompleteAsync((result, error) -> {
+          if (null != error) {
+            LOG.log(Level.WARNING, "Unable to stop " + virtualMachineName, error);
+          } else if (result != 0) {
+            LOG.log(Level.WARNING, "Unable to stop {0}", virtualMachineName);
+          } else if (destroyOnDisconnect && VirtualBoxUtils.destroyVm(machine, log) != 0) {
+            LOG.log(Level.WARNING, "Unable to delete {0}", virtualMachineName);
+          }
+        }, Computer.threadPoolForRemoting);
+  }
+
+  /**
+   * @param destroyOnDisconnect whether the machine is deleted once it is stopped
+   */
+  void setDestroyOnDisconnect(boolean destroyOnDisconnect) {
+    this.destroyOnDisconnect = destroyOnDisconnect;
+  }
+
+  boolean isDestroyOnDisconnect() {
+    return destroyOnDisconnect;
+  }
+
   /**
    * @return delegation target
    */
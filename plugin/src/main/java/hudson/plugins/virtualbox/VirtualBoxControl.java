@@ -6,12 +6,67 @@ import java.util.List;
  * @author Mihai Serban
  */
 public interface VirtualBoxControl {
-  public long startVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log);
-  public long stopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log);
+  public default long startVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log) {
+    VirtualBoxOperation operation = beginStartVm(machine, virtualMachineType, log);
+    operation.await();
+    return operation.finish();
+  }
 
+  public default long stopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log) {
+    VirtualBoxOperation operation = beginStopVm(machine, virtualMachineStopMode, log);
+    operation.await();
+    return operation.finish();
+  }
+
+  /**
+   * Starts the machine without waiting for the host to finish powering it up.
+   */
+  public VirtualBoxOperation beginStartVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log);
+
+  /**
+   * Stops the machine without waiting for the host to finish powering it down or saving its state.
+   */
+  public VirtualBoxOperation beginStopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log);
+
+  /**
+   * Takes a snapshot of every machine on the host in one pass.
+   */
   public List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log);
+
+  /**
+   * Reads the free memory and the processors of the host.
+   */
+  public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log);
+
+  /**
+   * Creates and registers a linked clone of a snapshot of the machine.
+   *
+   * @return UUID of the clone, null if it could not be created
+   */
+  public String cloneVm(VirtualBoxMachine machine, String snapshotName, String cloneName, VirtualBoxLogger log);
+
+  /**
+   * Unregisters a stopped machine and deletes its configuration and disks.
+   *
+   * @return 0 on success
+   */
+  public long destroyVm(VirtualBoxMachine machine, VirtualBoxLogger log);
   public String getMacAddress(VirtualBoxMachine machine, VirtualBoxLogger log);
+
+  /**
+   * Reads a property which the Guest Additions publish from inside the machine, like its IP address.
+   *
+   * @return value of the property, null if it is not set
+   */
+  public String getGuestProperty(VirtualBoxMachine machine, String name, VirtualBoxLogger log);
+
   public void disconnect();
 
   public boolean isConnected();
+
+  /**
+   * Delivers state changes of the host to the events shared by its connections. Blocks until the current
+   * thread is interrupted or the connection fails.
+   */
+  public void pumpEvents();
 }
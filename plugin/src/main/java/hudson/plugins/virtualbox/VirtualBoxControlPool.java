@@ -0,0 +1,518 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded pool of VirtualBox web service sessions to a single {@link VirtualBoxCloud}.
+ * <p>
+ * A checked out {@link VirtualBoxControl} is owned by one caller until it is returned, so operations on
+ * different virtual machines of the same host run in parallel, up to the size of the pool.
+ * </p>
+ * <p>
+ * The pool remembers the API version negotiated with the host and when the host last answered, so that
+ * a connection that was used recently is handed out without a probe and new connections skip the
+ * version handshake. Idle connections are kept alive by {@link VirtualBoxKeepAlive}.
+ * </p>
+ * <p>
+ * All connections of the pool share one set of {@link VirtualBoxMachineLocks}, so that two connections
+ * never change the state of the same machine at once.
+ * </p>
+ * <p>
+ * Once the host is reachable, a dedicated connection outside of the pool pumps state change events of the
+ * host into {@link VirtualBoxEvents}, which wakes up operations waiting for a machine or session to settle.
+ * </p>
+ * <p>
+ * A connection which began an operation the host is still working on goes back to the pool while the host works,
+ * but stays pinned: the progress of the operation only exists in the web service session of that connection, so it
+ * is polled and finished by taking exactly that connection out again, see {@link #tryCheckout(VirtualBoxControl)}.
+ * Pinned connections are neither handed out to other callers nor counted against the size of the pool.
+ * </p>
+ */
+final class VirtualBoxControlPool {
+
+  /**
+   * Idle connections used more recently than this are handed out without checking them first.
+   */
+  static final long VALIDATION_INTERVAL = TimeUnit.SECONDS.toMillis(
+      Long.getLong(VirtualBoxControlPool.class.getName() + ".validationInterval", 30));
+
+  private static final long MAX_PUMP_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+
+  private final int size;
+  private final Semaphore permits;
+  private final Deque<Entry> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicBoolean keepAliveRunning = new AtomicBoolean();
+  private final VirtualBoxMachineLocks locks = new VirtualBoxMachineLocks();
+  private final VirtualBoxEvents events = new VirtualBoxEvents(this::machineRegistered);
+  private final Connector connector;
+  private final VirtualBoxMetrics.Host metrics;
+
+  /**
+   * Connections with operations in progress, and how many, which are never trimmed.
+   */
+  private final Map<VirtualBoxControl, Integer> pinned = new ConcurrentHashMap<>();
+  private Thread eventPump;
+
+  /**
+   * Latest configuration of the host, used for new connections.
+   */
+  private volatile VirtualBoxCloud host;
+  private volatile boolean closed = false;
+
+  /**
+   * Major and minor version reported by the host, null until the first connection succeeds.
+   */
+  private volatile String apiVersion;
+  private volatile long lastContact;
+
+  VirtualBoxControlPool(VirtualBoxCloud host, int size) {
+    this(host, size, null);
+  }
+
+  /**
+   * @param connector opens the connections of the pool, null to connect to the web service of the host
+   */
+  VirtualBoxControlPool(VirtualBoxCloud host, int size, Connector connector) {
+    this(host, size, connector, null);
+  }
+
+  /**
+   * @param metrics latencies of the calls of the connections, null for the metrics kept under the name of the host
+   */
+  VirtualBoxControlPool(VirtualBoxCloud host, int size, Connector connector, VirtualBoxMetrics.Host metrics) {
+    this.host = host;
+    this.size = size;
+    this.permits = new Semaphore(size, true);
+    this.connector = connector;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Opens connections to a host other than through its web service, like the in-memory host of the benchmarks.
+   */
+  interface Connector {
+    /**
+     * @param locks  locks of the machines of the host, shared by all connections of the pool
+     * @param events events of the host, shared by all connections of the pool
+     */
+    VirtualBoxControl connect(VirtualBoxCloud host, VirtualBoxMachineLocks locks, VirtualBoxEvents events,
+                              VirtualBoxLogger log);
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  VirtualBoxCloud getHost() {
+    return host;
+  }
+
+  void setHost(VirtualBoxCloud host) {
+    this.host = host;
+  }
+
+  /**
+   * @return API version of the host, like "5.2", or null if not yet known
+   */
+  String getApiVersion() {
+    return apiVersion;
+  }
+
+  /**
+   * @return events of the host, delivered while a connection of the pool is open
+   */
+  VirtualBoxEvents getEvents() {
+    return events;
+  }
+
+  /**
+   * @return time of the last successful call to the host, 0 if there was none
+   */
+  long getLastContact() {
+    return lastContact;
+  }
+
+  /**
+   * Takes a connection out of the pool, waiting for one to be returned if all of them are in use.
+   * Idle connections that were dropped by the server are replaced by new ones. Pinned connections are never handed
+   * out: the caller may wait for the lock of the machine whose operation is in progress on that connection, which
+   * is only released once the connection finished the operation.
+   *
+   * @return connection which must be given back with {@link #checkin(VirtualBoxControl, boolean)}
+   * @throws InterruptedException if interrupted while waiting for a free connection
+   */
+  VirtualBoxControl checkout(VirtualBoxLogger log) throws InterruptedException {
+    permits.acquire();
+    try {
+      Entry entry;
+      while (null != (entry = pollUnpinned())) {
+        if (System.currentTimeMillis() - entry.lastContact < VALIDATION_INTERVAL || validate(entry.control)) {
+          return entry.control;
+        }
+        log.logInfo("Lost connection to " + host.getUrl() + ", reconnecting");
+        disconnect(entry.control);
+        // the host may have been upgraded while we were away
+        apiVersion = null;
+      }
+      VirtualBoxControl control = createVboxControl(log);
+      startEventPump(log);
+      return control;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * @return most recently used idle connection which is not pinned, taken out of the pool; null if there is none
+   */
+  private Entry pollUnpinned() {
+    for (Iterator<Entry> it = idle.iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (!pinned.containsKey(entry.control) && idle.removeFirstOccurrence(entry)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a connection taken with {@link #checkout(VirtualBoxLogger)} to the pool.
+   *
+   * @param succeeded whether the last call made with the connection succeeded, connections which failed are
+   *                  checked again before the next use
+   */
+  void checkin(VirtualBoxControl control, boolean succeeded) {
+    long now = System.currentTimeMillis();
+    if (succeeded) {
+      lastContact = now;
+    }
+    idle.offerFirst(new Entry(control, succeeded ? now : 0));
+    permits.release();
+    trimIdle();
+    if (closed) {
+      disconnectIdle();
+    }
+  }
+
+  /**
+   * Keeps the connection open while the host works on an operation it began, until {@link #unpin(VirtualBoxControl)}.
+   * A pinned connection does not count against the size of the pool, so that finishing its operation, which releases
+   * the machine lock, never waits for callers which hold the other connections and wait for that lock.
+   */
+  void pin(VirtualBoxControl control) {
+    pinned.merge(control, 1, Integer::sum);
+  }
+
+  void unpin(VirtualBoxControl control) {
+    if (null == pinned.computeIfPresent(control, (c, count) -> count > 1 ? count - 1 : null)) {
+      // an ordinary idle connection again
+      trimIdle();
+    }
+  }
+
+  /**
+   * Takes the given pinned connection out of the pool if it is idle, without waiting.
+   *
+   * @return true if the connection was taken and must be given back with
+   *         {@link #checkinPinned(VirtualBoxControl, boolean)}
+   */
+  boolean tryCheckout(VirtualBoxControl control) {
+    for (Iterator<Entry> it = idle.iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (entry.control == control && idle.removeFirstOccurrence(entry)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns a pinned connection taken with {@link #tryCheckout(VirtualBoxControl)} or
+   * {@link #checkout(VirtualBoxControl)} to the pool.
+   */
+  void checkinPinned(VirtualBoxControl control, boolean succeeded) {
+    long now = System.currentTimeMillis();
+    if (succeeded) {
+      lastContact = now;
+    }
+    idle.offerFirst(new Entry(control, succeeded ? now : 0));
+    if (closed) {
+      disconnectIdle();
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Takes the given pinned connection out of the pool, waiting while another caller uses it. Does not give up when
+   * interrupted, as the operation of the connection must be finished anyway.
+   *
+   * @return true if the connection was taken and must be given back with
+   *         {@link #checkinPinned(VirtualBoxControl, boolean)}, false if the connection was lost
+   */
+  boolean checkout(VirtualBoxControl control) {
+    boolean interrupted = false;
+    try {
+      while (!tryCheckout(control)) {
+        synchronized (this) {
+          if (!pinned.containsKey(control)) {
+            return false;
+          }
+          try {
+            // a checkin notifies, the timeout covers one which came before the wait
+            wait(100);
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      return true;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Opens a connection if the pool has none, so that the first real operation does not pay for the login.
+   */
+  void prewarm(VirtualBoxLogger log) throws InterruptedException {
+    if (!idle.isEmpty()) {
+      return;
+    }
+    VirtualBoxControl control = checkout(log);
+    checkin(control, true);
+  }
+
+  /**
+   * Checks idle connections which were not used for a while. This also keeps the web service sessions from
+   * timing out on the host. Connections in use are left alone, they prove the host is alive anyway.
+   */
+  void keepAlive(VirtualBoxLogger log) {
+    if (!keepAliveRunning.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      // an idle connection is only taken out together with a permit and goes back before the permit, so a checkout
+      // never finds the pool empty because of the keep alive and opens a connection too many
+      for (int unchecked = idle.size(); unchecked > 0 && permits.tryAcquire(); unchecked--) {
+        try {
+          Entry entry = idle.pollLast();
+          if (null == entry) {
+            break;
+          }
+          if (System.currentTimeMillis() - entry.lastContact < VALIDATION_INTERVAL) {
+            // the oldest connection was used recently, so were all others
+            idle.offerLast(entry);
+            break;
+          }
+          if (validate(entry.control)) {
+            idle.offerFirst(new Entry(entry.control, lastContact));
+          } else {
+            log.logWarning("Lost connection to " + host.getUrl());
+            disconnect(entry.control);
+            apiVersion = null;
+          }
+        } finally {
+          permits.release();
+        }
+      }
+      trimIdle();
+      if (closed) {
+        disconnectIdle();
+      }
+    } finally {
+      keepAliveRunning.set(false);
+    }
+  }
+
+  /**
+   * Disconnects idle connections, connections still in use are disconnected when they are returned.
+   */
+  void close() {
+    closed = true;
+    disconnectIdle();
+    synchronized (this) {
+      if (null != eventPump) {
+        eventPump.interrupt();
+      }
+    }
+  }
+
+  /**
+   * Opens a connection which is not part of the pool and which the caller disconnects.
+   */
+  VirtualBoxControl connect(VirtualBoxLogger log) {
+    return createVboxControl(log);
+  }
+
+  /**
+   * Forwards a registration event to the inventory of the cloud of the pool. Clouds of the same host have pools of
+   * their own.
+   */
+  private void machineRegistered(String machineId, String name, boolean registered) {
+    VirtualBoxCloud cloud = VirtualBoxPlugin.getHost(host.getDisplayName());
+    if (null != cloud) {
+      cloud.machineRegistered(machineId, name, registered);
+    }
+  }
+
+  private synchronized void startEventPump(VirtualBoxLogger log) {
+    if (null != eventPump || closed) {
+      return;
+    }
+    eventPump = new Thread(() -> pumpEvents(log), "VirtualBox event pump for " + host.getUrl());
+    eventPump.setDaemon(true);
+    eventPump.start();
+  }
+
+  /**
+   * Keeps a connection pumping events until the pool is closed. Waiters poll while the pump reconnects.
+   */
+  private void pumpEvents(VirtualBoxLogger log) {
+    long backoff = TimeUnit.SECONDS.toMillis(1);
+    while (!closed) {
+      VirtualBoxControl control = null;
+      long started = System.currentTimeMillis();
+      try {
+        control = createVboxControl(log);
+        control.pumpEvents();
+      } catch (RuntimeException e) {
+        log.logWarning("Event pump for " + host.getUrl() + " failed: " + e.getMessage());
+      } finally {
+        if (null != control) {
+          control.disconnect();
+        }
+      }
+      if (closed) {
+        break;
+      }
+      if (System.currentTimeMillis() - started > MAX_PUMP_BACKOFF) {
+        // the pump ran fine for a while, reconnect right away
+        backoff = TimeUnit.SECONDS.toMillis(1);
+      }
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        break;
+      }
+      backoff = Math.min(backoff * 2, MAX_PUMP_BACKOFF);
+    }
+  }
+
+  /**
+   * Disconnects the oldest idle connections beyond the size of the pool, so the host never holds more sessions.
+   * Pinned connections are kept, they are needed to finish their operations.
+   */
+  private void trimIdle() {
+    int excess = idle.size() - size;
+    for (Iterator<Entry> it = idle.descendingIterator(); excess > 0 && it.hasNext(); ) {
+      Entry entry = it.next();
+      if (!pinned.containsKey(entry.control) && idle.removeLastOccurrence(entry)) {
+        disconnect(entry.control);
+        excess--;
+      }
+    }
+  }
+
+  private void disconnectIdle() {
+    Entry entry;
+    while (null != (entry = idle.pollFirst())) {
+      disconnect(entry.control);
+    }
+  }
+
+  /**
+   * Disconnects a connection which left the pool. Callers waiting to finish an operation with it give up.
+   */
+  private void disconnect(VirtualBoxControl control) {
+    control.disconnect();
+    if (null != pinned.remove(control)) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  private boolean validate(VirtualBoxControl control) {
+    if (control.isConnected()) {
+      lastContact = System.currentTimeMillis();
+      return true;
+    }
+    return false;
+  }
+
+  private VirtualBoxControl createVboxControl(VirtualBoxLogger log) {
+    VirtualBoxCloud host = this.host;
+    VirtualBoxControl vboxControl = null;
+
+    if (null != connector) {
+      vboxControl = connector.connect(host, locks, events, log);
+      lastContact = System.currentTimeMillis();
+      return vboxControl;
+    }
+
+    log.logInfo("Trying to connect to " + host.getUrl() + ", user " + host.getUsername());
+    String version = apiVersion;
+
+    if (null == version) {
+      // any API version can read the version of the host, keep the session if it is the one we need
+      org.virtualbox_5_2.VirtualBoxManager manager = org.virtualbox_5_2.VirtualBoxManager.createInstance(null);
+      manager.connect(host.getUrl(), host.getUsername(), host.getPassword().getPlainText());
+      try {
+        version = manager.getVBox().getVersion().substring(0, 3);
+      } catch (RuntimeException e) {
+        manager.disconnect();
+        throw e;
+      }
+      if ("5.2".equals(version)) {
+        vboxControl = new VirtualBoxControlV52(manager, locks, events, metrics(host));
+      } else {
+        manager.disconnect();
+      }
+      log.logInfo("Creating connection to VirtualBox version " + version);
+    }
+
+    if (null == vboxControl) {
+      switch (version) {
+        case "6.0": vboxControl = new VirtualBoxControlV60(host.getUrl(), host.getUsername(), host.getPassword(), locks,
+                        events, metrics(host));
+                    break;
+        case "5.2": vboxControl = new VirtualBoxControlV52(host.getUrl(), host.getUsername(), host.getPassword(), locks,
+                        events, metrics(host));
+                    break;
+        default:    log.logError("VirtualBox version " + version + " not supported.");
+                    throw new UnsupportedOperationException("VirtualBox version " + version + " not supported.");
+      }
+    }
+
+    apiVersion = version;
+    lastContact = System.currentTimeMillis();
+    log.logInfo("Connected to VirtualBox version " + version + " on host " + host.getUrl());
+    return vboxControl;
+  }
+
+  private VirtualBoxMetrics.Host metrics(VirtualBoxCloud host) {
+    return null != metrics ? metrics : VirtualBoxUtils.metrics(host);
+  }
+
+  private static final class Entry {
+    final VirtualBoxControl control;
+    final long lastContact;
+
+    Entry(VirtualBoxControl control, long lastContact) {
+      this.control = control;
+      this.lastContact = lastContact;
+    }
+  }
+}
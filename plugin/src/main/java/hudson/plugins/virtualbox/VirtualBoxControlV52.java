@@ -3,26 +3,73 @@ package hudson.plugins.virtualbox;
 import hudson.util.Secret;
 import org.virtualbox_5_2.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class VirtualBoxControlV52 implements VirtualBoxControl {
 
     private final VirtualBoxManager manager;
     private final IVirtualBox vbox;
+    private final VirtualBoxMachineLocks locks;
+    private final VirtualBoxEvents events;
+    private final VirtualBoxMetrics.Host metrics;
+
+    /**
+     * Machines resolved by this connection, by name.
+     */
+    private final Map<String, MachineHandle> handles = new ConcurrentHashMap<>();
+
+    /**
+     * Network adapters the VirtualBox Manager shows for every machine.
+     */
+    private static final long SHOWN_ADAPTERS = 4;
 
     public VirtualBoxControlV52(String hostUrl, String userName, Secret password) {
+        this(hostUrl, userName, password, new VirtualBoxMachineLocks(), new VirtualBoxEvents(),
+                VirtualBoxMetrics.get().host(hostUrl));
+    }
+
+    /**
+     * @param locks   machine locks shared by all connections to the host
+     * @param events  state changes of the host
+     * @param metrics latencies of the calls to the host
+     */
+    VirtualBoxControlV52(String hostUrl, String userName, Secret password, VirtualBoxMachineLocks locks,
+                         VirtualBoxEvents events, VirtualBoxMetrics.Host metrics) {
         manager = VirtualBoxManager.createInstance(null);
         manager.connect(hostUrl, userName, password.getPlainText());
         vbox = manager.getVBox();
+        this.locks = locks;
+        this.events = events;
+        this.metrics = metrics;
     }
 
-    public synchronized void disconnect() {
+    /**
+     * @param manager already connected manager
+     * @param locks   machine locks shared by all connections to the host
+     * @param events  state changes of the host
+     * @param metrics latencies of the calls to the host
+     */
+    VirtualBoxControlV52(VirtualBoxManager manager, VirtualBoxMachineLocks locks, VirtualBoxEvents events,
+                         VirtualBoxMetrics.Host metrics) {
+        this.manager = manager;
+        vbox = manager.getVBox();
+        this.locks = locks;
+        this.events = events;
+        this.metrics = metrics;
+    }
+
+    public void disconnect() {
         try {
             manager.disconnect();
         } catch (VBoxException e) {}
     }
 
-    public synchronized boolean isConnected() {
+    public boolean isConnected() {
         try {
             vbox.getVersion();
             return true;
@@ -37,14 +84,36 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
      * @param host VirtualBox host
      * @return list of virtual machines installed on specified host
      */
-    public synchronized List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
+    public List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
         List<VirtualBoxMachine> result = new ArrayList<VirtualBoxMachine>();
+        Map<ChipsetType, Long> slots = new HashMap<ChipsetType, Long>();
         for (IMachine machine : vbox.getMachines()) {
-            result.add(new VirtualBoxMachine(host, machine.getName()));
+            try {
+                if (!machine.getAccessible()) {
+                    // only the UUID and the settings file of such a machine can be read
+                    result.add(new VirtualBoxMachine(host, getInaccessibleName(machine), machine.getId(),
+                            VirtualBoxMachine.INACCESSIBLE, null, Collections.<String>emptyList(), 0, 0, null, 0));
+                    continue;
+                }
+                result.add(new VirtualBoxMachine(host, machine.getName(), machine.getId(), machine.getState().name(),
+                        machine.getSessionState().name(), getMacAddresses(machine, slots), machine.getMemorySize(),
+                        machine.getCPUCount().intValue(), machine.getOSTypeId(), machine.getLastStateChange()));
+            } catch (VBoxException e) {
+                // the machine went away while we were looking at it
+            }
         }
         return result;
     }
 
+    /**
+     * Free memory and online processors of the host.
+     */
+    public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log) {
+        IHost host = vbox.getHost();
+        return new VirtualBoxHostLoad(host.getMemorySize(), host.getMemoryAvailable(),
+                host.getProcessorOnlineCount().intValue());
+    }
+
 
     /**
      * Starts specified VirtualBox virtual machine.
@@ -52,17 +121,53 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
      * @param vbMachine virtual machine to start
      * @param type      session type (can be headless, vrdp, gui, sdl)
      * @param log
-     * @return result code
+     * @return operation which completes once the machine runs
      */
-    public synchronized long startVm(VirtualBoxMachine vbMachine, String type, VirtualBoxLogger log) {
-        IMachine machine = vbox.findMachine(vbMachine.getName());
-        if (null == machine) {
+    public VirtualBoxOperation beginStartVm(VirtualBoxMachine vbMachine, String type, VirtualBoxLogger log) {
+        try {
+            locks.lock(vbMachine.getName());
+        } catch (InterruptedException e) {
+            log.logFatalError("node " + vbMachine.getName() + " error: interrupted while waiting for another operation");
+            Thread.currentThread().interrupt();
+            return VirtualBoxOperation.completed(-1);
+        }
+        VirtualBoxOperation operation = null;
+        try {
+            operation = beginStartVmLocked(vbMachine, type, log);
+            return operation;
+        } finally {
+            // operations in progress keep the machine locked until they finish
+            if (!(operation instanceof ProgressOperation)) {
+                locks.unlock(vbMachine.getName());
+            }
+        }
+    }
+
+    private VirtualBoxOperation beginStartVmLocked(VirtualBoxMachine vbMachine, String type, VirtualBoxLogger log) {
+        MachineHandle handle = findMachine(vbMachine.getName());
+        MachineState state = null;
+        long seen = 0;
+        if (null != handle) {
+            seen = events.getGeneration(handle.id);
+            try {
+                state = handle.machine.getState();
+            } catch (VBoxException e) {
+                // the cached handle went stale while no events were received
+                handle = resolveMachine(vbMachine.getName());
+                if (null != handle) {
+                    seen = events.getGeneration(handle.id);
+                    state = handle.machine.getState();
+                }
+            }
+        }
+        if (null == handle) {
             log.logFatalError("Cannot find node: " + vbMachine.getName());
-            return -1;
+            return VirtualBoxOperation.completed(-1);
         }
 
         // states diagram: https://www.virtualbox.org/sdkref/_virtual_box_8idl.html#80b08f71210afe16038e904a656ed9eb
-        MachineState state = machine.getState();
+        IMachine machine = handle.machine;
+        String machineId = handle.id;
         ISession session;
         IProgress progress;
 
@@ -70,24 +175,25 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
         while (state.value() >= MachineState.FirstTransient.value() && state.value() <= MachineState.LastTransient.value()) {
             log.logInfo("node " + vbMachine.getName() + " in state " + state.toString());
             try {
-                wait(1000);
+                events.await(machineId, seen, 1000);
             } catch (InterruptedException e) {}
+            seen = events.getGeneration(machineId);
             state = machine.getState();
         }
 
         if (MachineState.Running == state) {
             log.logInfo("node " + vbMachine.getName() + " in state " + state.toString());
             log.logInfo("node " + vbMachine.getName() + " started");
-            return 0;
+            return VirtualBoxOperation.completed(0);
         }
 
         if (MachineState.Stuck == state || MachineState.Paused == state) {
             log.logInfo("starting node " + vbMachine.getName() + " from state " + state.toString());
             try {
-                session = getSession(machine);
+                session = getSession(machine, machineId);
             } catch (Exception e) {
                 log.logFatalError("node " + vbMachine.getName() + " openMachineSession: " + e.getMessage());
-                return -1;
+                return VirtualBoxOperation.completed(-1);
             }
 
             progress = null;
@@ -105,15 +211,15 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
                 result = progress.getResultCode();
             }
 
-            releaseSession(session, machine);
+            releaseSession(session, machine, machineId);
             if (0 != result) {
                 log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
-                return -1;
+                return VirtualBoxOperation.completed(-1);
             }
 
             if (MachineState.Stuck != state) {
                 log.logInfo("node " + vbMachine.getName() + " started");
-                return 0;
+                return VirtualBoxOperation.completed(0);
             }
             // continue from PoweredOff state
             state = machine.getState(); // update state
@@ -122,20 +228,11 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
         log.logInfo("starting node " + vbMachine.getName() + " from state " + state.toString());
 
         // powerUp from Saved, Aborted or PoweredOff states
-        session = getSession(null);
+        session = getSession(null, null);
         String env = "";
         progress = machine.launchVMProcess(session, type, env);
-        progress.waitForCompletion(-1);
-        long result = progress.getResultCode();
-        releaseSession(session, machine);
-
-        if (0 != result) {
-            log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
-        } else {
-            log.logInfo("node " + vbMachine.getName() + " started");
-        }
-
-        return result;
+        return new ProgressOperation(vbMachine, machine, machineId, session, progress, "launchVMProcess", "started",
+                log);
     }
 
     /**
@@ -143,17 +240,53 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
      *
      * @param vbMachine virtual machine to stop
      * @param log
-     * @return result code
+     * @return operation which completes once the machine is stopped
      */
-    public synchronized long stopVm(VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
-        IMachine machine = vbox.findMachine(vbMachine.getName());
-        if (null == machine) {
+    public VirtualBoxOperation beginStopVm(VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
+        try {
+            locks.lock(vbMachine.getName());
+        } catch (InterruptedException e) {
+            log.logFatalError("node " + vbMachine.getName() + " error: interrupted while waiting for another operation");
+            Thread.currentThread().interrupt();
+            return VirtualBoxOperation.completed(-1);
+        }
+        VirtualBoxOperation operation = null;
+        try {
+            operation = beginStopVmLocked(vbMachine, stopMode, log);
+            return operation;
+        } finally {
+            // operations in progress keep the machine locked until they finish
+            if (!(operation instanceof ProgressOperation)) {
+                locks.unlock(vbMachine.getName());
+            }
+        }
+    }
+
+    private VirtualBoxOperation beginStopVmLocked(VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
+        MachineHandle handle = findMachine(vbMachine.getName());
+        MachineState state = null;
+        long seen = 0;
+        if (null != handle) {
+            seen = events.getGeneration(handle.id);
+            try {
+                state = handle.machine.getState();
+            } catch (VBoxException e) {
+                // the cached handle went stale while no events were received
+                handle = resolveMachine(vbMachine.getName());
+                if (null != handle) {
+                    seen = events.getGeneration(handle.id);
+                    state = handle.machine.getState();
+                }
+            }
+        }
+        if (null == handle) {
             log.logFatalError("Cannot find node: " + vbMachine.getName());
-            return -1;
+            return VirtualBoxOperation.completed(-1);
         }
 
         // states diagram: https://www.virtualbox.org/sdkref/_virtual_box_8idl.html#80b08f71210afe16038e904a656ed9eb
-        MachineState state = machine.getState();
+        IMachine machine = handle.machine;
+        String machineId = handle.id;
         ISession session;
         IProgress progress;
 
@@ -161,46 +294,153 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
         while (state.value() >= MachineState.FirstTransient.value() && state.value() <= MachineState.LastTransient.value()) {
             log.logInfo("node " + vbMachine.getName() + " in state " + state.toString());
             try {
-                wait(1000);
+                events.await(machineId, seen, 1000);
             } catch (InterruptedException e) {}
+            seen = events.getGeneration(machineId);
             state = machine.getState();
         }
 
         log.logInfo("stopping node " + vbMachine.getName() + " from state " + state.toString());
 
+        if ("restore".equals(stopMode)) {
+            return beginRestoreLocked(vbMachine, machine, machineId, state, log);
+        }
+
         if (MachineState.Aborted == state || MachineState.PoweredOff == state
                 || MachineState.Saved == state) {
             log.logInfo("node " + vbMachine.getName() + " stopped");
-            return 0;
+            return VirtualBoxOperation.completed(0);
         }
 
         try {
-            session = getSession(machine);
+            session = getSession(machine, machineId);
         } catch (Exception e) {
             log.logFatalError("node " + vbMachine.getName() + " openMachineSession: " + e.getMessage());
-            return -1;
+            return VirtualBoxOperation.completed(-1);
         }
 
+        String operation;
         if (MachineState.Stuck == state || "powerdown".equals(stopMode)) {
             // for Stuck state call powerDown and go to PoweredOff state
             progress = session.getConsole().powerDown();
+            operation = "powerDown";
         } else {
             // Running or Paused
             progress = session.getMachine().saveState();
+            operation = "saveState";
         }
 
-        progress.waitForCompletion(-1);
-        long result = progress.getResultCode();
+        return new ProgressOperation(vbMachine, machine, machineId, session, progress, operation, "stopped", log);
+    }
 
-        releaseSession(session, machine);
+    /**
+     * Powers the machine off, waiting for it, and restores its current snapshot. If the snapshot was taken while the
+     * machine was running, the machine ends up saved and the next start resumes it right there.
+     */
+    private VirtualBoxOperation beginRestoreLocked(VirtualBoxMachine vbMachine, IMachine machine, String machineId,
+                                                   MachineState state, VirtualBoxLogger log) {
+        ISnapshot snapshot = machine.getCurrentSnapshot();
+        if (null == snapshot) {
+            log.logFatalError("node " + vbMachine.getName() + " has no snapshot to restore");
+            return VirtualBoxOperation.completed(-1);
+        }
 
-        if (0 != result) {
-            log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
-        } else {
-            log.logInfo("node " + vbMachine.getName() + " stopped");
+        ISession session;
+        if (MachineState.Running == state || MachineState.Paused == state || MachineState.Stuck == state) {
+            try {
+                session = getSession(machine, machineId);
+            } catch (Exception e) {
+                log.logFatalError("node " + vbMachine.getName() + " openMachineSession: " + e.getMessage());
+                return VirtualBoxOperation.completed(-1);
+            }
+            // powering off takes a moment only, the restore is what we hand out
+            IProgress progress = session.getConsole().powerDown();
+            progress.waitForCompletion(-1);
+            releaseSession(session, machine, machineId);
+            if (0 != progress.getResultCode()) {
+                log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
+                return VirtualBoxOperation.completed(-1);
+            }
         }
 
-        return result;
+        try {
+            session = getSession(machine, machineId, LockType.Write);
+        } catch (Exception e) {
+            log.logFatalError("node " + vbMachine.getName() + " openMachineSession: " + e.getMessage());
+            return VirtualBoxOperation.completed(-1);
+        }
+        IProgress progress = session.getMachine().restoreSnapshot(snapshot);
+        return new ProgressOperation(vbMachine, machine, machineId, session, progress, "restoreSnapshot",
+                "restored to snapshot " + snapshot.getName(), log);
+    }
+
+    /**
+     * Creates and registers a linked clone of a snapshot of the machine. The clone gets new MAC addresses.
+     *
+     * @param vbMachine    machine to clone
+     * @param snapshotName snapshot the clone is linked to
+     * @param cloneName    name of the new machine
+     * @return UUID of the clone, null if it could not be created
+     */
+    public String cloneVm(VirtualBoxMachine vbMachine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+        MachineHandle handle = findMachine(vbMachine.getName());
+        if (null == handle) {
+            log.logFatalError("Cannot find node: " + vbMachine.getName());
+            return null;
+        }
+        ISnapshot snapshot;
+        try {
+            snapshot = handle.machine.findSnapshot(snapshotName);
+        } catch (VBoxException e) {
+            log.logFatalError("node " + vbMachine.getName() + " has no snapshot " + snapshotName);
+            return null;
+        }
+        IMachine clone = vbox.createMachine(null, cloneName, null, handle.machine.getOSTypeId(), null);
+        IProgress progress = snapshot.getMachine().cloneTo(clone, CloneMode.MachineState,
+                Arrays.asList(CloneOptions.Link));
+        progress.waitForCompletion(-1);
+        if (0 != progress.getResultCode()) {
+            log.logFatalError("Unable to clone " + vbMachine.getName() + ": " + getVBProcessError(progress));
+            return null;
+        }
+        vbox.registerMachine(clone);
+        log.logInfo("node " + cloneName + " cloned from " + vbMachine.getName() + "/" + snapshotName);
+        return clone.getId();
+    }
+
+    /**
+     * Unregisters a stopped machine and deletes its configuration and disks, for a linked clone only its
+     * differencing disks.
+     *
+     * @return 0 on success
+     */
+    public long destroyVm(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+        try {
+            locks.lock(vbMachine.getName());
+        } catch (InterruptedException e) {
+            log.logFatalError("node " + vbMachine.getName() + " error: interrupted while waiting for another operation");
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        try {
+            MachineHandle handle = findMachine(vbMachine.getName());
+            if (null == handle) {
+                log.logFatalError("Cannot find node: " + vbMachine.getName());
+                return -1;
+            }
+            handles.remove(vbMachine.getName());
+            List<IMedium> media = handle.machine.unregister(CleanupMode.DetachAllReturnHardDisksOnly);
+            IProgress progress = handle.machine.deleteConfig(media);
+            progress.waitForCompletion(-1);
+            if (0 != progress.getResultCode()) {
+                log.logFatalError("Unable to delete " + vbMachine.getName() + ": " + getVBProcessError(progress));
+                return -1;
+            }
+            log.logInfo("node " + vbMachine.getName() + " deleted");
+            return 0;
+        } finally {
+            locks.unlock(vbMachine.getName());
+        }
     }
 
     /**
@@ -209,10 +449,223 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
      * @param vbMachine virtual machine
      * @return MAC Address of specified virtual machine
      */
-    public synchronized String getMacAddress(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
-        IMachine machine = vbox.findMachine(vbMachine.getName());
-        String macAddress = machine.getNetworkAdapter(0L).getMACAddress();
-        return macAddress;
+    public String getMacAddress(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+        MachineHandle handle = findMachine(vbMachine.getName());
+        if (null == handle) {
+            return null;
+        }
+        try {
+            return handle.machine.getNetworkAdapter(0L).getMACAddress();
+        } catch (VBoxException e) {
+            handle = resolveMachine(vbMachine.getName());
+            return null == handle ? null : handle.machine.getNetworkAdapter(0L).getMACAddress();
+        }
+    }
+
+    /**
+     * Guest property of specified virtual machine.
+     *
+     * @param vbMachine virtual machine
+     * @param name      name of the property, like /VirtualBox/GuestInfo/Net/0/V4/IP
+     * @return value of the property, null if the guest did not set it
+     */
+    public String getGuestProperty(VirtualBoxMachine vbMachine, String name, VirtualBoxLogger log) {
+        MachineHandle handle = findMachine(vbMachine.getName());
+        if (null == handle) {
+            return null;
+        }
+        String value;
+        try {
+            value = handle.machine.getGuestPropertyValue(name);
+        } catch (VBoxException e) {
+            handle = resolveMachine(vbMachine.getName());
+            value = null == handle ? null : handle.machine.getGuestPropertyValue(name);
+        }
+        return null == value || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Delivers machine state, session state, registration and settings changes of the host to the shared
+     * {@link VirtualBoxEvents}, until the current thread is interrupted or the connection fails.
+     */
+    public void pumpEvents() {
+        IEventSource source = vbox.getEventSource();
+        IEventListener listener = source.createListener();
+        source.registerListener(listener,
+                Arrays.asList(VBoxEventType.OnMachineStateChanged, VBoxEventType.OnSessionStateChanged,
+                        VBoxEventType.OnMachineRegistered, VBoxEventType.OnMachineDataChanged,
+                        VBoxEventType.OnGuestPropertyChanged), false);
+        events.setActive(true);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                IEvent event = source.getEvent(listener, 1000);
+                if (null == event) {
+                    continue;
+                }
+                try {
+                    String machineId = IMachineEvent.queryInterface(event).getMachineId();
+                    if (VBoxEventType.OnMachineRegistered == event.getType()) {
+                        boolean registered = IMachineRegisteredEvent.queryInterface(event).getRegistered();
+                        events.fireRegistered(machineId, registered ? vbox.findMachine(machineId).getName() : null,
+                                registered);
+                    } else if (VBoxEventType.OnMachineDataChanged == event.getType()) {
+                        events.fireChanged(machineId);
+                    } else {
+                        events.fire(machineId);
+                    }
+                } catch (VBoxException e) {
+                    // the machine went away before we could look at it
+                } finally {
+                    source.eventProcessed(listener, event);
+                }
+            }
+        } finally {
+            events.setActive(false);
+            try {
+                source.unregisterListener(listener);
+            } catch (VBoxException e) {}
+        }
+    }
+
+    /**
+     * Power up, power down or save state in progress. Holds the machine lock until it is finished.
+     */
+    private final class ProgressOperation implements VirtualBoxOperation {
+        private final VirtualBoxMachine vbMachine;
+        private final IMachine machine;
+        private final String machineId;
+        private final ISession session;
+        private final IProgress progress;
+        private final VirtualBoxMetrics.Timer timer;
+        private final String outcome;
+        private final VirtualBoxLogger log;
+
+        /**
+         * @param operation name of the operation in the metrics of the host, timed until {@link #finish()}
+         */
+        ProgressOperation(VirtualBoxMachine vbMachine, IMachine machine, String machineId, ISession session,
+                          IProgress progress, String operation, String outcome, VirtualBoxLogger log) {
+            this.vbMachine = vbMachine;
+            this.machine = machine;
+            this.machineId = machineId;
+            this.session = session;
+            this.progress = progress;
+            this.timer = metrics.start(operation);
+            this.outcome = outcome;
+            this.log = log;
+        }
+
+        public boolean isDone() {
+            return progress.getCompleted();
+        }
+
+        public void await() {
+            progress.waitForCompletion(-1);
+        }
+
+        public long finish() {
+            try {
+                long result = progress.getResultCode();
+                timer.finished(0 == result);
+                releaseSession(session, machine, machineId);
+
+                if (0 != result) {
+                    log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
+                } else {
+                    log.logInfo("node " + vbMachine.getName() + " " + outcome);
+                }
+                return result;
+            } finally {
+                timer.close();
+                locks.unlock(vbMachine.getName());
+            }
+        }
+    }
+
+    /**
+     * Machine reference of this connection, valid until the machine is renamed or unregistered.
+     */
+    private static final class MachineHandle {
+        final IMachine machine;
+        final String id;
+        final long changes;
+
+        MachineHandle(IMachine machine, String id, long changes) {
+            this.machine = machine;
+            this.id = id;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Looks up the machine, from the handle cache unless the host reported a change of the machine since. While no
+     * event pump is running, changes go unnoticed, so the machine is looked up every time.
+     *
+     * @return handle, null if the host has no such machine
+     */
+    private MachineHandle findMachine(String name) {
+        try (VirtualBoxMetrics.Timer timer = metrics.start("findMachine")) {
+            MachineHandle handle = handles.get(name);
+            if (null == handle || !events.isActive() || handle.changes != events.getChanges(handle.id)) {
+                handle = resolveMachine(name);
+            }
+            timer.finished(null != handle);
+            return handle;
+        }
+    }
+
+    private MachineHandle resolveMachine(String name) {
+        handles.remove(name);
+        IMachine machine;
+        try {
+            machine = vbox.findMachine(name);
+        } catch (VBoxException e) {
+            return null;
+        }
+        if (null == machine) {
+            return null;
+        }
+        String id = machine.getId();
+        MachineHandle handle = new MachineHandle(machine, id, events.getChanges(id));
+        handles.put(name, handle);
+        return handle;
+    }
+
+    /**
+     * The adapters the VirtualBox Manager shows are all read, the ones beyond only up to the first disabled one: a
+     * chipset may allow dozens of adapters, which are hardly ever used, and each costs two calls.
+     *
+     * @param slots number of network adapters by chipset, filled as chipsets are seen
+     * @return MAC addresses of the enabled network adapters of the machine
+     */
+    private List<String> getMacAddresses(IMachine machine, Map<ChipsetType, Long> slots) {
+        ChipsetType chipset = machine.getChipsetType();
+        Long count = slots.get(chipset);
+        if (null == count) {
+            count = vbox.getSystemProperties().getMaxNetworkAdapters(chipset);
+            slots.put(chipset, count);
+        }
+        List<String> macAddresses = new ArrayList<String>();
+        for (long slot = 0; slot < count; slot++) {
+            INetworkAdapter adapter = machine.getNetworkAdapter(slot);
+            if (adapter.getEnabled()) {
+                macAddresses.add(adapter.getMACAddress());
+            } else if (slot >= SHOWN_ADAPTERS) {
+                break;
+            }
+        }
+        return macAddresses;
+    }
+
+    /**
+     * @return name of the settings file of the machine without its extension, which is the name of the machine
+     *         unless it was renamed without moving its files
+     */
+    private static String getInaccessibleName(IMachine machine) {
+        String path = machine.getSettingsFilePath();
+        // the host may use either separator
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+        return name.endsWith(".vbox") ? name.substring(0, name.length() - ".vbox".length()) : name;
     }
 
     private String getVBProcessError(IProgress progress) {
@@ -234,31 +687,38 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
         return SessionState.Spawning == state || SessionState.Unlocking == state;
     }
 
-    private ISession getSession(IMachine machine) {
+    private ISession getSession(IMachine machine, String machineId) {
+        return getSession(machine, machineId, LockType.Shared);
+    }
+
+    private ISession getSession(IMachine machine, String machineId, LockType lockType) {
         ISession s = manager.getSessionObject();
         if (null != machine) {
-            machine.lockMachine(s, LockType.Shared);
-            while (isTransientState(machine.getSessionState())) {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {}
+            try (VirtualBoxMetrics.Timer timer = metrics.start("lockMachine")) {
+                long seen = events.getGeneration(machineId);
+                machine.lockMachine(s, lockType);
+                while (isTransientState(machine.getSessionState())) {
+                    awaitSessionEvent(machineId, seen);
+                    seen = events.getGeneration(machineId);
+                }
+                timer.succeeded();
             }
         }
 
+        long seen = events.getGeneration(machineId);
         while (isTransientState(s.getState())) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {}
+            awaitSessionEvent(machineId, seen);
+            seen = events.getGeneration(machineId);
         }
 
         return s;
     }
 
-    private void releaseSession(ISession s, IMachine machine) {
+    private void releaseSession(ISession s, IMachine machine, String machineId) {
+        long seen = events.getGeneration(machineId);
         while (isTransientState(machine.getSessionState()) || isTransientState(s.getState())) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {}
+            awaitSessionEvent(machineId, seen);
+            seen = events.getGeneration(machineId);
         }
 
         try {
@@ -266,9 +726,14 @@ public final class VirtualBoxControlV52 implements VirtualBoxControl {
         } catch (VBoxException e) {}
 
         while (isTransientState(machine.getSessionState()) || isTransientState(s.getState())) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {}
+            awaitSessionEvent(machineId, seen);
+            seen = events.getGeneration(machineId);
         }
     }
+
+    private void awaitSessionEvent(String machineId, long seen) {
+        try {
+            events.await(machineId, seen, 500);
+        } catch (InterruptedException e) {}
+    }
 }
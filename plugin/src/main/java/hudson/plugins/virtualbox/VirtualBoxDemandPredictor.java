@@ -0,0 +1,458 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.slaves.NodeProvisioner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Starts agents ahead of the builds which usually arrive at this time of the week, like nightly builds or the
+ * merges of the morning, so that the first build of a burst does not wait for a machine to boot.
+ * <p>
+ * Every minute the demand for executors per label, builds waiting for one plus builds running on agents with the
+ * label, is recorded in a histogram with one slot per hour of the week. Running builds count too, so the demand does
+ * not seem to drop once agents are started ahead. A slot holds a decaying average of the peak demand seen in that hour
+ * in past weeks. When the slot a few minutes ahead predicts more builds than online or starting executors, offline
+ * {@link VirtualBoxSlave}s which suspend when idle are connected, then {@link VirtualBoxCloud}s provision agents,
+ * both within the active machine limits of their hosts.
+ * </p>
+ * <p>
+ * An agent started ahead which takes a build within {@link #HOLD} counts as a hit, otherwise as a miss. The minutes
+ * agents started ahead wait for their first build are wasted; once more than {@link #MAX_WASTED_MINUTES} were
+ * wasted in a day, nothing is started ahead until the day rolls over. Idle agents are suspended or removed by their
+ * retention strategies as usual.
+ * </p>
+ */
+final class VirtualBoxDemandPredictor {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxDemandPredictor.class.getName());
+
+  /**
+   * How far ahead agents are started.
+   */
+  private static final long LEAD = TimeUnit.MINUTES.toMillis(
+      Long.getLong(VirtualBoxDemandPredictor.class.getName() + ".leadMinutes", 10));
+
+  /**
+   * How long an agent started ahead may wait for its first build before it counts as a miss.
+   */
+  private static final long HOLD = TimeUnit.MINUTES.toMillis(
+      Long.getLong(VirtualBoxDemandPredictor.class.getName() + ".holdMinutes", 30));
+
+  /**
+   * Agent minutes which may be wasted per day.
+   */
+  private static final long MAX_WASTED_MINUTES =
+      Long.getLong(VirtualBoxDemandPredictor.class.getName() + ".maxWastedMinutesPerDay", 240);
+
+  private static final int SLOTS = 7 * 24;
+
+  /**
+   * Weight of the latest week in a slot.
+   */
+  private static final float WEIGHT = 0.5f;
+
+  /**
+   * Histograms whose slots all fell below this are dropped.
+   */
+  private static final float NEGLIGIBLE = 0.05f;
+
+  private static final int MAX_LABELS = 200;
+
+  private static final VirtualBoxDemandPredictor INSTANCE = new VirtualBoxDemandPredictor();
+
+  /**
+   * Demand histograms by label expression, the empty string for builds which can run anywhere. Guarded by this.
+   */
+  private Map<String, Histogram> histograms;
+
+  /**
+   * Agents started ahead by node name, whose outcome is not known yet.
+   */
+  private final Map<String, Prestart> prestarts = new HashMap<>();
+
+  /**
+   * Time and wasted minutes of every agent started ahead in the last day.
+   */
+  private final Deque<long[]> wasted = new ArrayDeque<>();
+
+  private long hits;
+  private long misses;
+
+  private VirtualBoxDemandPredictor() {
+  }
+
+  static VirtualBoxDemandPredictor get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records the demand of this minute and starts agents for the demand predicted ahead.
+   */
+  synchronized void tick() {
+    long now = System.currentTimeMillis();
+    if (null == histograms) {
+      histograms = load();
+    }
+    if (record(now)) {
+      save();
+    }
+    settle(now);
+    if (getWastedMinutes(now) >= MAX_WASTED_MINUTES) {
+      LOG.log(Level.FINE, "Wasted {0} agent minutes today, not starting agents ahead", getWastedMinutes(now));
+      return;
+    }
+    int slot = slotOf(now + LEAD);
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      int predicted = Math.round(entry.getValue().predict(slot));
+      if (predicted > 0) {
+        startAhead(entry.getKey(), predicted, now);
+      }
+    }
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return share of agents started ahead which took a build in time, 0 if none was started
+   */
+  synchronized double getHitRate() {
+    long total = hits + misses;
+    return 0 == total ? 0 : (double) hits / total;
+  }
+
+  /**
+   * @return agent minutes wasted in the last day
+   */
+  synchronized long getWastedMinutes() {
+    return getWastedMinutes(System.currentTimeMillis());
+  }
+
+  /**
+   * @return whether the slot changed, so the histograms are worth saving
+   */
+  private boolean record(long now) {
+    Map<String, Integer> demand = new HashMap<>();
+    for (Queue.BuildableItem item : Queue.getInstance().getBuildableItems()) {
+      demand.merge(keyOf(item.getAssignedLabel()), 1, Integer::sum);
+    }
+    for (String key : demand.keySet()) {
+      if (!histograms.containsKey(key) && histograms.size() < MAX_LABELS) {
+        histograms.put(key, new Histogram());
+      }
+    }
+    Jenkins jenkins = Jenkins.getInstance();
+    for (String key : histograms.keySet()) {
+      Label label = key.isEmpty() ? null : jenkins.getLabel(key);
+      for (Computer computer : jenkins.getComputers()) {
+        Node node = computer.getNode();
+        if (null != node && computer.isOnline() && matches(label, node)) {
+          demand.merge(key, computer.countBusy(), Integer::sum);
+        }
+      }
+    }
+    int slot = slotOf(now);
+    boolean changed = false;
+    for (Iterator<Map.Entry<String, Histogram>> it = histograms.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Histogram> entry = it.next();
+      Histogram histogram = entry.getValue();
+      changed |= histogram.observe(slot, demand.getOrDefault(entry.getKey(), 0));
+      if (histogram.isNegligible()) {
+        it.remove();
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Decides about agents started ahead which took a build or waited too long.
+   */
+  private void settle(long now) {
+    Jenkins jenkins = Jenkins.getInstance();
+    for (Iterator<Map.Entry<String, Prestart>> it = prestarts.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Prestart> entry = it.next();
+      Prestart prestart = entry.getValue();
+      if (hasFailed(entry.getKey(), prestart)) {
+        // no agent, so no minutes wasted either
+        misses++;
+        it.remove();
+        continue;
+      }
+      Computer computer = jenkins.getComputer(entry.getKey());
+      boolean used = null != computer && computer.isOnline() && (computer.countBusy() > 0
+          // an executor which finished a build became idle after the agent connected
+          || computer.getIdleStartMilliseconds() > computer.getConnectTime() + TimeUnit.SECONDS.toMillis(5));
+      if (used) {
+        hits++;
+      } else if (now - prestart.started > LEAD + HOLD || (null == computer && now - prestart.started > LEAD)) {
+        misses++;
+      } else {
+        continue;
+      }
+      long online = null == computer || computer.getConnectTime() < prestart.started
+          ? prestart.started : computer.getConnectTime();
+      wasted.addLast(new long[]{now, TimeUnit.MILLISECONDS.toMinutes(Math.max(0, now - online))});
+      it.remove();
+      LOG.log(Level.INFO, "Agent {0} started ahead was {1}, hit rate {2}",
+          new Object[]{entry.getKey(), used ? "used" : "not used", getHitRate()});
+    }
+  }
+
+  private void startAhead(String key, int predicted, long now) {
+    Jenkins jenkins = Jenkins.getInstance();
+    Label label = key.isEmpty() ? null : jenkins.getLabel(key);
+    int missing = predicted - countSupply(label);
+    if (missing <= 0) {
+      return;
+    }
+    LOG.log(Level.FINE, "Expecting {0} more builds for {1}", new Object[]{missing, key.isEmpty() ? "any label" : key});
+
+    // configured agents are there anyway, use them first
+    for (Computer computer : jenkins.getComputers()) {
+      if (missing <= 0) {
+        return;
+      }
+      if (!(computer instanceof VirtualBoxComputer) || !computer.isOffline() || computer.isConnecting()
+          || computer.isTemporarilyOffline()
+          || !(computer.getRetentionStrategy() instanceof VirtualBoxIdleSuspendStrategy)) {
+        continue;
+      }
+      VirtualBoxSlave slave = ((VirtualBoxComputer) computer).getNode();
+      VirtualBoxCloud host = null == slave ? null : VirtualBoxPlugin.getHost(slave.getHostName());
+      if (null == host || !matches(label, slave) || host.getAvailableMachines() < 1) {
+        continue;
+      }
+      LOG.log(Level.INFO, "Starting {0} ahead of expected builds", slave.getNodeName());
+      computer.connect(false);
+      prestarts.put(slave.getNodeName(), new Prestart(now, null));
+      missing -= slave.getNumExecutors();
+    }
+
+    for (VirtualBoxCloud cloud : VirtualBoxPlugin.getHosts()) {
+      if (missing <= 0) {
+        return;
+      }
+      if (!cloud.canProvision(label) || cloud.getAvailableMachines() < 1) {
+        continue;
+      }
+      // the planned nodes add themselves once their agents are online, failures are picked up by settle
+      Collection<NodeProvisioner.PlannedNode> planned = cloud.provision(label, missing);
+      for (NodeProvisioner.PlannedNode node : planned) {
+        LOG.log(Level.INFO, "Provisioning {0} ahead of expected builds", node.displayName);
+        prestarts.put(node.displayName, new Prestart(now, node.future));
+        missing -= node.numExecutors;
+      }
+    }
+  }
+
+  /**
+   * @return whether the launch of an agent provisioned ahead failed, which is logged
+   */
+  private static boolean hasFailed(String nodeName, Prestart prestart) {
+    if (null == prestart.launch || !prestart.launch.isDone()) {
+      return false;
+    }
+    try {
+      prestart.launch.get();
+      return false;
+    } catch (InterruptedException e) {
+      // can't happen, the launch is done
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      LOG.log(Level.WARNING, "Unable to provision " + nodeName + " ahead of expected builds", e.getCause());
+      return true;
+    } catch (CancellationException e) {
+      LOG.log(Level.WARNING, "Provisioning {0} ahead of expected builds was cancelled", nodeName);
+      return true;
+    }
+  }
+
+  /**
+   * @return online and starting executors for the label, and executors of agents started ahead which are not there
+   *         yet
+   */
+  private int countSupply(Label label) {
+    Jenkins jenkins = Jenkins.getInstance();
+    int supply = 0;
+    for (Computer computer : jenkins.getComputers()) {
+      Node node = computer.getNode();
+      if (null == node || !matches(label, node) || !computer.isAcceptingTasks()) {
+        continue;
+      }
+      if (computer.isOnline()) {
+        supply += computer.getExecutors().size();
+      } else if (computer.isConnecting()) {
+        supply += node.getNumExecutors();
+      }
+    }
+    for (String name : prestarts.keySet()) {
+      if (null == jenkins.getComputer(name)) {
+        // planned agents have one executor at least
+        supply++;
+      }
+    }
+    return supply;
+  }
+
+  private long getWastedMinutes(long now) {
+    while (!wasted.isEmpty() && now - wasted.peekFirst()[0] > TimeUnit.DAYS.toMillis(1)) {
+      wasted.removeFirst();
+    }
+    long total = 0;
+    for (long[] entry : wasted) {
+      total += entry[1];
+    }
+    return total;
+  }
+
+  private static boolean matches(Label label, Node node) {
+    return null == label ? Node.Mode.NORMAL == node.getMode() : label.contains(node);
+  }
+
+  private static String keyOf(Label label) {
+    return null == label ? "" : label.getExpression();
+  }
+
+  /**
+   * @return hour of the week in the local time zone, 0 for the first hour of Sunday
+   */
+  static int slotOf(long millis) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(millis);
+    return (calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * 24 + calendar.get(Calendar.HOUR_OF_DAY);
+  }
+
+  private static XmlFile getFile() {
+    File root = Jenkins.getInstance().getRootDir();
+    return new XmlFile(new File(root, VirtualBoxDemandPredictor.class.getName() + ".xml"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Histogram> load() {
+    XmlFile file = getFile();
+    if (file.exists()) {
+      try {
+        return new HashMap<>((Map<String, Histogram>) file.read());
+      } catch (IOException | RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to read the demand histograms, starting over", e);
+      }
+    }
+    return new HashMap<>();
+  }
+
+  private void save() {
+    try {
+      getFile().write(new HashMap<>(histograms));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to save the demand histograms", e);
+    }
+  }
+
+  /**
+   * Demand of one label by hour of the week.
+   */
+  static final class Histogram {
+    /**
+     * Average peak demand of every slot, negative for slots never seen.
+     */
+    private final float[] slots = new float[SLOTS];
+    private int current = -1;
+    private int peak;
+
+    Histogram() {
+      Arrays.fill(slots, -1);
+    }
+
+    /**
+     * @return whether the slot changed
+     */
+    boolean observe(int slot, int demand) {
+      if (slot == current) {
+        peak = Math.max(peak, demand);
+        return false;
+      }
+      if (current >= 0) {
+        slots[current] = slots[current] < 0 ? peak : (1 - WEIGHT) * slots[current] + WEIGHT * peak;
+      }
+      current = slot;
+      peak = demand;
+      return true;
+    }
+
+    float predict(int slot) {
+      return Math.max(0, slots[slot]);
+    }
+
+    boolean isNegligible() {
+      if (peak > 0) {
+        return false;
+      }
+      for (float value : slots) {
+        if (value >= NEGLIGIBLE) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class Prestart {
+    final long started;
+
+    /**
+     * Launch of an agent provisioned ahead, null for configured agents.
+     */
+    final Future<Node> launch;
+
+    Prestart(long started, Future<Node> launch) {
+      this.started = started;
+      this.launch = launch;
+    }
+  }
+
+  /**
+   * Records the demand and starts agents ahead of it every minute.
+   */
+  @Extension
+  public static class Tick extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      get().tick();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package hudson.plugins.virtualbox;
+
+import hudson.model.Computer;
+import hudson.slaves.SlaveComputer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Answers the discovery probes which the client in the machine of a {@link VirtualBoxSlave} broadcasts when it
+ * boots, with the endpoint of the node of the machine, see {@link VirtualBoxAgentEndpoint}.
+ * <p>
+ * A probe is {@code virtualbox-probe } followed by the comma separated MAC addresses of the machine. Only probes with
+ * an address of a known machine are answered, so other Jenkins on the same network stay quiet. The secret of the
+ * agent is only sent if anonymous users may connect the agent anyway; otherwise the client asks
+ * {@link VirtualBoxPlugin#doGetAgentEndpoint} for it.
+ * </p>
+ * <p>
+ * All probes are read and answered by one thread, so many machines booting at the same time cost neither a thread
+ * nor an HTTP request each. Lookups never wait for a host: a probe with an unknown address rebuilds the
+ * {@link VirtualBoxMacIndex} in the background and the client probes again.
+ * </p>
+ * <p>
+ * Nothing listens unless {@link #PORT} is set, as an open UDP port is not what everyone expects of a plugin. Clients
+ * probe port 33849 besides the one of the UDP broadcast service of Jenkins.
+ * </p>
+ */
+final class VirtualBoxDiscoveryResponder {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxDiscoveryResponder.class.getName());
+
+  /**
+   * UDP port to listen on, -1 (the default) to not answer probes.
+   */
+  static final int PORT = Integer.getInteger(VirtualBoxDiscoveryResponder.class.getName() + ".port", -1);
+
+  static final String PROBE_PREFIX = "virtualbox-probe ";
+
+  private static final int MAX_PROBE = 1024;
+
+  private static final int MAX_ADDRESSES = 16;
+
+  private static final Pattern MAC_ADDRESS = Pattern.compile("[0-9A-Fa-f]{2}([:-]?[0-9A-Fa-f]{2}){5}");
+
+  private static final VirtualBoxDiscoveryResponder INSTANCE = new VirtualBoxDiscoveryResponder();
+
+  private final AtomicLong probes = new AtomicLong();
+  private final AtomicLong answers = new AtomicLong();
+
+  private Selector selector;
+  private DatagramChannel channel;
+  private Thread thread;
+
+  private VirtualBoxDiscoveryResponder() {
+  }
+
+  static VirtualBoxDiscoveryResponder get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Listens on {@link #PORT}, unless already listening or disabled.
+   */
+  synchronized void start() {
+    if (null != thread || PORT < 0) {
+      return;
+    }
+    try {
+      selector = Selector.open();
+      channel = DatagramChannel.open(StandardProtocolFamily.INET);
+      channel.configureBlocking(false);
+      channel.bind(new InetSocketAddress(PORT));
+      channel.register(selector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to answer discovery probes on UDP port " + PORT, e);
+      close();
+      return;
+    }
+    thread = new Thread(this::run, "VirtualBox discovery responder on UDP port " + PORT);
+    thread.setDaemon(true);
+    thread.start();
+    LOG.log(Level.INFO, "Answering discovery probes on UDP port {0}", String.valueOf(PORT));
+  }
+
+  synchronized void stop() {
+    if (null == thread) {
+      return;
+    }
+    close();
+    try {
+      thread.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+  }
+
+  private void close() {
+    try {
+      if (null != channel) {
+        channel.close();
+      }
+      if (null != selector) {
+        selector.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Unable to close discovery responder", e);
+    }
+  }
+
+  /**
+   * @return number of probes received
+   */
+  long getProbes() {
+    return probes.get();
+  }
+
+  /**
+   * @return number of probes answered with an endpoint
+   */
+  long getAnswers() {
+    return answers.get();
+  }
+
+  private void run() {
+    Selector selector;
+    DatagramChannel channel;
+    synchronized (this) {
+      selector = this.selector;
+      channel = this.channel;
+    }
+    ByteBuffer probe = ByteBuffer.allocate(MAX_PROBE);
+    while (channel.isOpen()) {
+      try {
+        selector.select();
+        selector.selectedKeys().clear();
+        while (true) {
+          probe.clear();
+          SocketAddress sender = channel.receive(probe);
+          if (null == sender) {
+            break;
+          }
+          probe.flip();
+          probes.incrementAndGet();
+          ByteBuffer answer = answer(StandardCharsets.US_ASCII.decode(probe).toString());
+          // a full send buffer drops the answer, the client probes again
+          if (null != answer && channel.send(answer, sender) > 0) {
+            answers.incrementAndGet();
+          }
+        }
+      } catch (ClosedChannelException | ClosedSelectorException e) {
+        return;
+      } catch (IOException | RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to answer discovery probe", e);
+      }
+    }
+  }
+
+  /**
+   * @return endpoint for the machine which sent the probe, null if the probe is not for this plugin or the machine
+   *         is unknown
+   */
+  private static ByteBuffer answer(String probe) {
+    List<String> macAddresses = parse(probe);
+    if (macAddresses.isEmpty()) {
+      return null;
+    }
+    String nodeName = VirtualBoxMacIndex.get().findNodeNow(macAddresses);
+    Computer computer = null == nodeName ? null : Jenkins.getInstance().getComputer(nodeName);
+    if (!(computer instanceof SlaveComputer) || !(computer.getNode() instanceof VirtualBoxSlave)) {
+      return null;
+    }
+    boolean withSecret = computer.getACL().hasPermission(Jenkins.ANONYMOUS, Computer.CONNECT);
+    LOG.log(Level.FINE, "Answering discovery probe for {0}", nodeName);
+    String xml = VirtualBoxAgentEndpoint.of((SlaveComputer) computer, withSecret).toXml();
+    return ByteBuffer.wrap(xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return MAC addresses in the probe, empty if it is no probe
+   */
+  static List<String> parse(String probe) {
+    List<String> macAddresses = new ArrayList<>();
+    if (probe.startsWith(PROBE_PREFIX)) {
+      for (String macAddress : probe.substring(PROBE_PREFIX.length()).trim().split(",")) {
+        if (macAddresses.size() < MAX_ADDRESSES && MAC_ADDRESS.matcher(macAddress).matches()) {
+          macAddresses.add(macAddress);
+        }
+      }
+    }
+    return macAddresses;
+  }
+}
@@ -0,0 +1,169 @@
+package hudson.plugins.virtualbox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Machine state, session state, guest property, registration and settings changes of one host, as delivered by the event pump of its
+ * {@link VirtualBoxControlPool}.
+ * <p>
+ * Callers waiting for a machine to leave a transient state read the generation of the machine, check its
+ * state and then {@link #await(String, long, long)} the next change, so no event can be missed between the
+ * check and the wait. When no pump is running, waits fall back to polling.
+ * </p>
+ */
+final class VirtualBoxEvents {
+
+  /**
+   * Longest wait for an event while the pump is running, in case an event gets lost anyway.
+   */
+  private static final long MAX_WAIT = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * Receives machine registration events of the host.
+   */
+  interface RegistrationListener {
+    /**
+     * @param name name of the registered machine, null on unregistration
+     */
+    void machineRegistered(String machineId, String name, boolean registered);
+  }
+
+  /**
+   * Counts of the machines known to the host, unregistered machines are removed so that single use clones don't
+   * pile up.
+   */
+  private final Map<String, Long> generations = new HashMap<>();
+  private final Map<String, Long> changes = new HashMap<>();
+
+  /**
+   * Added to all counts and raised beyond the counts of every removed machine, so that no count ever goes back to
+   * a value a caller has seen.
+   */
+  private long floor = 0;
+  private final RegistrationListener registrationListener;
+  private boolean active = false;
+
+  VirtualBoxEvents() {
+    this(null);
+  }
+
+  VirtualBoxEvents(RegistrationListener registrationListener) {
+    this.registrationListener = registrationListener;
+  }
+
+  /**
+   * @return number of events seen so far for the machine
+   */
+  synchronized long getGeneration(String machineId) {
+    Long generation = generations.get(machineId);
+    return floor + (null == generation ? 0 : generation);
+  }
+
+  /**
+   * Waits until an event newer than the given generation arrives for the machine.
+   *
+   * @param machineId  UUID of the machine, null if it is not known, in which case this only sleeps
+   * @param seen       generation read before the state was checked
+   * @param pollMillis how long to wait when no pump is running
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized void await(String machineId, long seen, long pollMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis()
+        + (active && null != machineId ? Math.max(pollMillis, MAX_WAIT) : pollMillis);
+    long remaining;
+    while (getGeneration(machineId) == seen && (remaining = deadline - System.currentTimeMillis()) > 0) {
+      wait(remaining);
+      if (!active) {
+        // the pump went away, resume polling
+        deadline = Math.min(deadline, System.currentTimeMillis() + pollMillis);
+      }
+    }
+  }
+
+  /**
+   * Waits until an event newer than the given generation arrives for the machine, but no longer than the given
+   * time, whether a pump is running or not.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized void awaitAtMost(String machineId, long seen, long millis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + millis;
+    long remaining;
+    while (getGeneration(machineId) == seen && (remaining = deadline - System.currentTimeMillis()) > 0) {
+      wait(remaining);
+    }
+  }
+
+  /**
+   * Called by the pump for every state or guest property change of a machine.
+   */
+  synchronized void fire(String machineId) {
+    generations.merge(machineId, 1L, Long::sum);
+    notifyAll();
+  }
+
+  /**
+   * @return number of registration and settings changes seen so far for the machine, a cached reference to the
+   *         machine is stale once this changes
+   */
+  synchronized long getChanges(String machineId) {
+    Long count = changes.get(machineId);
+    return floor + (null == count ? 0 : count);
+  }
+
+  /**
+   * Called by the pump when the settings of a machine, like its name, changed.
+   */
+  synchronized void fireChanged(String machineId) {
+    changes.merge(machineId, 1L, Long::sum);
+  }
+
+  /**
+   * Called by the pump when a machine is registered or unregistered.
+   */
+  void fireRegistered(String machineId, String name, boolean registered) {
+    fireChanged(machineId);
+    fire(machineId);
+    if (!registered) {
+      forget(machineId);
+    }
+    if (null != registrationListener) {
+      registrationListener.machineRegistered(machineId, name, registered);
+    }
+  }
+
+  /**
+   * Drops the counts of an unregistered machine. The counts of all other machines change as well, which only
+   * makes their waiters check the state once more and their cached references be looked up again.
+   */
+  private synchronized void forget(String machineId) {
+    Long generation = generations.remove(machineId);
+    Long count = changes.remove(machineId);
+    floor += 1 + Math.max(null == generation ? 0 : generation, null == count ? 0 : count);
+    notifyAll();
+  }
+
+  /**
+   * @return number of machines with counts, for tests
+   */
+  synchronized int size() {
+    return Math.max(generations.size(), changes.size());
+  }
+
+  synchronized boolean isActive() {
+    return active;
+  }
+
+  /**
+   * A pump which comes back may have missed changes, so all counts change as well, like when a machine is forgotten.
+   */
+  synchronized void setActive(boolean active) {
+    if (active && !this.active) {
+      floor++;
+    }
+    this.active = active;
+    notifyAll();
+  }
+}
@@ -0,0 +1,39 @@
+package hudson.plugins.virtualbox;
+
+/**
+ * Memory and processors of a VirtualBox host, as reported by the host at one point in time.
+ */
+final class VirtualBoxHostLoad {
+
+  private final long memorySize;
+  private final long memoryAvailable;
+  private final int processorCount;
+
+  /**
+   * @param memorySize      physical memory of the host in megabytes
+   * @param memoryAvailable memory not used by the host or any machine in megabytes
+   * @param processorCount  number of online logical processors
+   */
+  VirtualBoxHostLoad(long memorySize, long memoryAvailable, int processorCount) {
+    this.memorySize = memorySize;
+    this.memoryAvailable = memoryAvailable;
+    this.processorCount = processorCount;
+  }
+
+  long getMemorySize() {
+    return memorySize;
+  }
+
+  long getMemoryAvailable() {
+    return memoryAvailable;
+  }
+
+  int getProcessorCount() {
+    return processorCount;
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualBoxHostLoad{memory=" + memoryAvailable + "/" + memorySize + "MB, processors=" + processorCount + '}';
+  }
+}
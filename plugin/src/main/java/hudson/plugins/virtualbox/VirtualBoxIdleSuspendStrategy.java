@@ -0,0 +1,110 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.ComputerPanelBox;
+import hudson.model.Descriptor;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Suspends the machine of a {@link VirtualBoxSlave} once the agent was idle for a while, and resumes it when a build
+ * which the agent can run enters the queue.
+ * <p>
+ * A suspended machine is saved rather than powered off, so it comes back within seconds and the host only
+ * needs room for the agents which are actually busy. The time suspending and resuming took is shown on the page of
+ * the agent.
+ * </p>
+ */
+public class VirtualBoxIdleSuspendStrategy extends RetentionStrategy<VirtualBoxComputer> {
+
+  private final int idleMinutes;
+
+  @DataBoundConstructor
+  public VirtualBoxIdleSuspendStrategy(int idleMinutes) {
+    this.idleMinutes = idleMinutes < 1 ? 1 : idleMinutes;
+  }
+
+  public int getIdleMinutes() {
+    return idleMinutes;
+  }
+
+  @Override
+  public synchronized long check(VirtualBoxComputer computer) {
+    if (computer.isOnline()) {
+      if (computer.isIdle() && !computer.isConnecting()) {
+        long idleMillis = System.currentTimeMillis() - computer.getIdleStartMilliseconds();
+        if (idleMillis > TimeUnit.MINUTES.toMillis(idleMinutes)) {
+          computer.suspend("save");
+        }
+      }
+    } else if (computer.isSuspended()) {
+      resumeIfNeeded(computer);
+    }
+    return 1;
+  }
+
+  /**
+   * Leaves the agent offline until a build needs it, a machine which was left running is suspended once the agent
+   * connected and was idle for a while.
+   */
+  @Override
+  public void start(VirtualBoxComputer computer) {
+    computer.markSuspended();
+    resumeIfNeeded(computer);
+  }
+
+  private static void resumeIfNeeded(VirtualBoxComputer computer) {
+    if (!computer.isConnecting() && !computer.isTemporarilyOffline()
+        && VirtualBoxBootScheduler.LOWEST_PRIORITY != VirtualBoxBootScheduler.priorityOf(computer.getNode())) {
+      computer.connect(false);
+    }
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+    @Override
+    public String getDisplayName() {
+      return Messages.VirtualBoxIdleSuspendStrategy_displayName();
+    }
+  }
+
+  /**
+   * Resumes suspended agents as soon as a build they can run is waiting, rather than at the next check.
+   */
+  @Extension
+  public static class Resume extends QueueListener {
+    @Override
+    public void onEnterBuildable(Queue.BuildableItem item) {
+      for (Computer computer : Jenkins.getInstance().getComputers()) {
+        // the item is buildable now, so agents which can run it see it in the queue
+        if (computer instanceof VirtualBoxComputer && computer.isOffline()
+            && ((VirtualBoxComputer) computer).isSuspended()
+            && ((VirtualBoxComputer) computer).getRetentionStrategy() instanceof VirtualBoxIdleSuspendStrategy) {
+          resumeIfNeeded((VirtualBoxComputer) computer);
+        }
+      }
+    }
+  }
+
+  /**
+   * Shows how long suspending and resuming took on the page of the agent.
+   */
+  @Extension
+  public static class Statistics extends ComputerPanelBox {
+    /**
+     * For UI.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean isShown() {
+      return getComputer() instanceof VirtualBoxComputer
+          && ((VirtualBoxComputer) getComputer()).getRetentionStrategy() instanceof VirtualBoxIdleSuspendStrategy;
+    }
+  }
+}
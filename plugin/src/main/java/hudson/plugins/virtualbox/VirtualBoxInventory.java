@@ -0,0 +1,131 @@
+package hudson.plugins.virtualbox;
+
+import hudson.model.Computer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Cached list of the virtual machines registered on a {@link VirtualBoxCloud}.
+ * <p>
+ * Readers never block once the first list was fetched: a list older than the configured time to live is still
+ * served while a fresh one is fetched in the background. Between refreshes the list is updated from the
+ * machine registration events of the host.
+ * </p>
+ */
+final class VirtualBoxInventory {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxInventory.class.getName());
+
+  /**
+   * A machine which is not in the list triggers a refresh in the background only if the list is older than this.
+   */
+  private static final long MISS_REFRESH_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+  private final VirtualBoxCloud host;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  /**
+   * Machines by name, replaced as a whole on every change.
+   */
+  private volatile Map<String, VirtualBoxMachine> machines = null;
+  private volatile long refreshed = 0;
+
+  VirtualBoxInventory(VirtualBoxCloud host) {
+    this.host = host;
+  }
+
+  /**
+   * @return machines sorted by name, only blocks if they were never fetched
+   */
+  List<VirtualBoxMachine> getMachines() {
+    return Collections.unmodifiableList(new ArrayList<>(current().values()));
+  }
+
+  /**
+   * @return machines sorted by name as last fetched, null if they were never fetched; never talks to the host
+   */
+  List<VirtualBoxMachine> getCachedMachines() {
+    Map<String, VirtualBoxMachine> current = machines;
+    return null == current ? null : Collections.unmodifiableList(new ArrayList<>(current.values()));
+  }
+
+  /**
+   * @return machine with the given name, null if the host has no such machine or it was created since the last
+   *         refresh, in which case a refresh starts in the background and the next lookup finds the machine
+   */
+  VirtualBoxMachine getMachine(String name) {
+    VirtualBoxMachine machine = current().get(name);
+    if (null == machine && System.currentTimeMillis() - refreshed > MISS_REFRESH_INTERVAL) {
+      refreshAsync();
+    }
+    return machine;
+  }
+
+  /**
+   * Fetches the machines from the host, blocking the caller.
+   */
+  synchronized Map<String, VirtualBoxMachine> refresh() {
+    Map<String, VirtualBoxMachine> fetched = new TreeMap<>();
+    for (VirtualBoxMachine machine : VirtualBoxUtils.getMachines(host, new VirtualBoxSystemLog(LOG, "[VirtualBox] "))) {
+      fetched.put(machine.getName(), machine);
+    }
+    machines = Collections.unmodifiableMap(fetched);
+    refreshed = System.currentTimeMillis();
+    host.getAdmission().reconcile(fetched.values());
+    return machines;
+  }
+
+  /**
+   * Applies a machine registration event of the host.
+   *
+   * @param name name of the registered machine, null on unregistration
+   */
+  synchronized void machineRegistered(String id, String name, boolean registered) {
+    Map<String, VirtualBoxMachine> current = machines;
+    if (null == current) {
+      return;
+    }
+    Map<String, VirtualBoxMachine> updated = new TreeMap<>(current);
+    if (registered) {
+      updated.put(name, new VirtualBoxMachine(host, name, id));
+      // the details of the new machine come with the next refresh, which should not wait for the time to live
+      refreshed = 0;
+    } else {
+      updated.values().removeIf(machine -> id.equals(machine.getId()));
+    }
+    machines = Collections.unmodifiableMap(updated);
+  }
+
+  private Map<String, VirtualBoxMachine> current() {
+    Map<String, VirtualBoxMachine> current = machines;
+    if (null == current) {
+      return refresh();
+    }
+    if (System.currentTimeMillis() - refreshed > host.getInventoryTtlMillis()) {
+      refreshAsync();
+    }
+    return current;
+  }
+
+  /**
+   * Fetches the machines in the background, unless a refresh is already running.
+   */
+  private void refreshAsync() {
+    if (refreshing.compareAndSet(false, true)) {
+      Computer.threadPoolForRemoting.submit(() -> {
+        try {
+          refresh();
+        } finally {
+          refreshing.set(false);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the pooled web service sessions to VirtualBox hosts alive and drops the ones the host has closed,
+ * so that operations rarely need to reconnect or probe the host first.
+ */
+@Extension
+public class VirtualBoxKeepAlive extends PeriodicWork {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxKeepAlive.class.getName());
+
+  /**
+   * Must be shorter than the session timeout of vboxwebsrv, which is 300 seconds by default.
+   */
+  private static final long PERIOD = TimeUnit.SECONDS.toMillis(
+      Long.getLong(VirtualBoxKeepAlive.class.getName() + ".period", 60));
+
+  @Override
+  public long getRecurrencePeriod() {
+    return PERIOD;
+  }
+
+  @Override
+  protected void doRun() {
+    // each host is checked on its own thread, so an unreachable host does not delay the others
+    VirtualBoxUtils.keepAlive(new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+  }
+}
@@ -0,0 +1,222 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Maps the MAC addresses of all network adapters of the machines behind {@link VirtualBoxSlave}s to the names
+ * of the nodes, so that {@link VirtualBoxPlugin#doGetSlaveAgent} answers without asking any host.
+ * <p>
+ * The addresses come from the machine snapshots of one inventory pass per host. The index is rebuilt in the
+ * background when nodes are added, changed or removed and periodically, to notice adapters changed on the host.
+ * An address which is not in the index triggers a rebuild in the background, unless the index was rebuilt very
+ * recently.
+ * </p>
+ */
+final class VirtualBoxMacIndex {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxMacIndex.class.getName());
+
+  /**
+   * An unknown address triggers a rebuild only if the index is older than this.
+   */
+  private static final long MISS_REFRESH_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+  private static final VirtualBoxMacIndex INSTANCE = new VirtualBoxMacIndex();
+
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  /**
+   * Last machines read from each host, by host name and machine name. Used when a host is unreachable.
+   */
+  private final Map<String, Map<String, VirtualBoxMachine>> hostMachines = new ConcurrentHashMap<>();
+
+  /**
+   * Node names by normalized MAC address, replaced as a whole on every rebuild.
+   */
+  private volatile Map<String, String> nodes = Collections.emptyMap();
+  private volatile long refreshed = 0;
+
+  private VirtualBoxMacIndex() {
+  }
+
+  static VirtualBoxMacIndex get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Never blocks the caller, which is a request of a booting machine: an unknown address rebuilds the index in the
+   * background, so that the machine finds its node when it asks again.
+   *
+   * @param macAddresses MAC addresses of all network adapters of a machine, with or without separators
+   * @return name of the node whose machine has a network adapter with one of the addresses, the first address
+   *         with a node wins; null if there is none
+   */
+  String findNodeNow(Collection<String> macAddresses) {
+    String node = find(nodes, macAddresses);
+    if (null == node && System.currentTimeMillis() - refreshed > MISS_REFRESH_INTERVAL) {
+      // the node or its machine may be new
+      refreshAsync();
+    }
+    return node;
+  }
+
+  static String find(Map<String, String> index, Collection<String> macAddresses) {
+    for (String macAddress : macAddresses) {
+      String node = index.get(normalize(macAddress));
+      if (null != node) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Rebuilds the index in the background, unless a rebuild is already running.
+   */
+  void refreshAsync() {
+    if (refreshing.compareAndSet(false, true)) {
+      Computer.threadPoolForRemoting.submit(() -> {
+        try {
+          refresh();
+        } finally {
+          refreshing.set(false);
+        }
+      });
+    }
+  }
+
+  /**
+   * Reads the addresses from every host with {@link VirtualBoxSlave}s, blocking the caller.
+   */
+  synchronized Map<String, String> refresh() {
+    List<Node> allNodes = Jenkins.getInstance().getNodes();
+
+    Set<String> hostNames = new HashSet<>();
+    for (Node node : allNodes) {
+      if (node instanceof VirtualBoxSlave) {
+        hostNames.add(((VirtualBoxSlave) node).getHostName());
+      }
+    }
+    hostMachines.keySet().retainAll(hostNames);
+    for (String hostName : hostNames) {
+      VirtualBoxCloud host = VirtualBoxPlugin.getHost(hostName);
+      if (null == host) {
+        hostMachines.remove(hostName);
+        continue;
+      }
+      try {
+        // a fresh inventory pass, which also brings the inventory of the host up to date
+        Map<String, VirtualBoxMachine> machines = new HashMap<>();
+        for (VirtualBoxMachine machine : host.refreshVirtualMachinesList()) {
+          machines.put(machine.getName(), machine);
+        }
+        if (!Thread.currentThread().isInterrupted()) {
+          hostMachines.put(hostName, machines);
+        }
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to read MAC addresses from " + host.getUrl() + ", keeping the previous ones", e);
+      }
+    }
+
+    // in the order of the nodes, the last node with an address wins
+    Map<String, VirtualBoxMachine> nodeMachines = new LinkedHashMap<>();
+    for (Node node : allNodes) {
+      if (node instanceof VirtualBoxSlave) {
+        VirtualBoxSlave slave = (VirtualBoxSlave) node;
+        Map<String, VirtualBoxMachine> machines = hostMachines.get(slave.getHostName());
+        VirtualBoxMachine machine = null == machines ? null : machines.get(slave.getVirtualMachineName());
+        if (null != machine) {
+          nodeMachines.put(slave.getNodeName(), machine);
+        }
+      }
+    }
+    nodes = index(nodeMachines);
+    refreshed = System.currentTimeMillis();
+    return nodes;
+  }
+
+  /**
+   * @param nodeMachines machine of each node, by node name; of two nodes with the same address the later one wins
+   * @return node names by normalized MAC address
+   */
+  static Map<String, String> index(Map<String, VirtualBoxMachine> nodeMachines) {
+    Map<String, String> index = new HashMap<>();
+    for (Map.Entry<String, VirtualBoxMachine> entry : nodeMachines.entrySet()) {
+      for (String macAddress : entry.getValue().getMacAddresses()) {
+        index.put(normalize(macAddress), entry.getKey());
+      }
+    }
+    return Collections.unmodifiableMap(index);
+  }
+
+  static String normalize(String macAddress) {
+    return macAddress.replace(":", "").replace("-", "").toUpperCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Rebuilds the index when {@link VirtualBoxSlave}s are added, changed or removed.
+   */
+  @Extension
+  public static class NodeChanges extends NodeListener {
+    @Override
+    protected void onCreated(Node node) {
+      if (node instanceof VirtualBoxSlave) {
+        get().refreshAsync();
+      }
+    }
+
+    @Override
+    protected void onUpdated(Node oldOne, Node newOne) {
+      if (oldOne instanceof VirtualBoxSlave || newOne instanceof VirtualBoxSlave) {
+        get().refreshAsync();
+      }
+    }
+
+    @Override
+    protected void onDeleted(Node node) {
+      if (node instanceof VirtualBoxSlave) {
+        get().refreshAsync();
+      }
+    }
+  }
+
+  /**
+   * Picks up network adapters changed on the hosts.
+   */
+  @Extension
+  public static class PeriodicRefresh extends PeriodicWork {
+    private static final long PERIOD = TimeUnit.MINUTES.toMillis(
+        Long.getLong(VirtualBoxMacIndex.class.getName() + ".refreshPeriod", 5));
+
+    @Override
+    public long getRecurrencePeriod() {
+      return PERIOD;
+    }
+
+    @Override
+    protected void doRun() {
+      get().refreshAsync();
+    }
+  }
+}
@@ -1,19 +1,69 @@
 package hudson.plugins.virtualbox;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
+ * Virtual machine of a {@link VirtualBoxCloud}.
+ * <p>
+ * Machines listed by the host are immutable snapshots taken in one pass over all machines, see
+ * {@link VirtualBoxControl#getMachines(VirtualBoxCloud, VirtualBoxLogger)}. Their details describe the machine
+ * at the time of the last inventory refresh and cost no further calls to the host.
+ * </p>
+ *
  * @author Evgeny Mandrikov
  */
 public class VirtualBoxMachine implements Comparable<VirtualBoxMachine> {
 
+  /**
+   * State of a machine whose settings the host could not read, like after its disk went away. Nothing but its name
+   * and UUID is known, and it can't be started.
+   */
+  public static final String INACCESSIBLE = "Inaccessible";
+
   private final VirtualBoxCloud host;
   private final String name;
+  private final String id;
+  private final String state;
+  private final String sessionState;
+  private final List<String> macAddresses;
+  private final long memorySize;
+  private final int cpuCount;
+  private final String osTypeId;
+  private final long lastStateChange;
 
   @DataBoundConstructor
   public VirtualBoxMachine(VirtualBoxCloud host, String name) {
+    this(host, name, null);
+  }
+
+  public VirtualBoxMachine(VirtualBoxCloud host, String name, String id) {
+    this(host, name, id, null, null, Collections.<String>emptyList(), 0, 0, null, 0);
+  }
+
+  /**
+   * @param state           machine state, like "PoweredOff"
+   * @param sessionState    session state, like "Unlocked"
+   * @param macAddresses    MAC addresses of the enabled network adapters
+   * @param memorySize      memory of the machine in megabytes
+   * @param lastStateChange time of the last state change in milliseconds since the epoch
+   */
+  public VirtualBoxMachine(VirtualBoxCloud host, String name, String id, String state, String sessionState,
+                           List<String> macAddresses, long memorySize, int cpuCount, String osTypeId,
+                           long lastStateChange) {
     this.host = host;
     this.name = name;
+    this.id = id;
+    this.state = state;
+    this.sessionState = sessionState;
+    this.macAddresses = Collections.unmodifiableList(new ArrayList<String>(macAddresses));
+    this.memorySize = memorySize;
+    this.cpuCount = cpuCount;
+    this.osTypeId = osTypeId;
+    this.lastStateChange = lastStateChange;
   }
 
   public VirtualBoxCloud getHost() {
@@ -24,6 +74,69 @@ public class VirtualBoxMachine implements Comparable<VirtualBoxMachine> {
     return name;
   }
 
+  /**
+   * @return UUID of the machine, null if not known
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return machine state when the snapshot was taken, like "Running", null if not known
+   */
+  public String getState() {
+    return state;
+  }
+
+  /**
+   * @return false if the host could not read the settings of the machine
+   */
+  public boolean isAccessible() {
+    return !INACCESSIBLE.equals(state);
+  }
+
+  /**
+   * @return session state when the snapshot was taken, like "Locked", null if not known
+   */
+  public String getSessionState() {
+    return sessionState;
+  }
+
+  /**
+   * @return MAC addresses of the enabled network adapters, empty if not known
+   */
+  public List<String> getMacAddresses() {
+    return macAddresses;
+  }
+
+  /**
+   * @return memory size in megabytes, 0 if not known
+   */
+  public long getMemorySize() {
+    return memorySize;
+  }
+
+  /**
+   * @return number of virtual CPUs, 0 if not known
+   */
+  public int getCpuCount() {
+    return cpuCount;
+  }
+
+  /**
+   * @return guest OS type, like "Ubuntu_64", null if not known
+   */
+  public String getOsTypeId() {
+    return osTypeId;
+  }
+
+  /**
+   * @return time of the last state change in milliseconds since the epoch, 0 if not known
+   */
+  public long getLastStateChange() {
+    return lastStateChange;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (this == obj) {
@@ -0,0 +1,73 @@
+package hudson.plugins.virtualbox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Locks for the virtual machines of one host, one per machine name.
+ * <p>
+ * Operations which change the state of a machine hold its lock, so two of them never race on the same
+ * machine, while operations on different machines never wait for each other. Reads like the inventory or MAC
+ * addresses take no lock at all.
+ * </p>
+ * <p>
+ * The locks are binary semaphores rather than monitors, so a lock may be released by another thread
+ * than the one which took it. A lock exists only while an operation holds or waits for it, so the locks of
+ * unregistered machines, like single use clones, do not pile up.
+ * </p>
+ */
+final class VirtualBoxMachineLocks {
+
+  /**
+   * Locks by machine name.
+   */
+  private final ConcurrentMap<String, Lock> locks = new ConcurrentHashMap<>();
+
+  /**
+   * Waits until no other operation holds the lock of the machine.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void lock(String machineName) throws InterruptedException {
+    Lock lock = locks.compute(machineName, (name, existing) -> {
+      Lock result = null == existing ? new Lock() : existing;
+      result.users++;
+      return result;
+    });
+    try {
+      lock.semaphore.acquire();
+    } catch (InterruptedException e) {
+      leave(machineName);
+      throw e;
+    }
+  }
+
+  void unlock(String machineName) {
+    Lock lock = locks.get(machineName);
+    if (null != lock) {
+      lock.semaphore.release();
+      leave(machineName);
+    }
+  }
+
+  /**
+   * @return number of machines whose lock is held or waited for, for tests
+   */
+  int size() {
+    return locks.size();
+  }
+
+  private void leave(String machineName) {
+    locks.computeIfPresent(machineName, (name, lock) -> --lock.users > 0 ? lock : null);
+  }
+
+  private static final class Lock {
+    private final Semaphore semaphore = new Semaphore(1, true);
+
+    /**
+     * Operations which hold or wait for the lock, only changed while the map computes the entry.
+     */
+    private int users;
+  }
+}
@@ -0,0 +1,443 @@
+package hudson.plugins.virtualbox;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Latencies, errors and operations in flight of the calls to the VirtualBox hosts and of the launches, per host and
+ * operation, to see where the launch time goes.
+ * <p>
+ * Every operation gets an MBean named {@code hudson.plugins.virtualbox:type=Operation,host=...,name=...}, and every
+ * host one named {@code hudson.plugins.virtualbox:type=Host,name=...} with the active machine limit and the boot
+ * slots. With the Metrics plugin installed, the same numbers are gauges named {@code virtualbox.<host>.<operation>.*}
+ * as well, see {@link VirtualBoxMetricsExport}.
+ * </p>
+ * <p>
+ * Latencies go into histograms with four buckets per power of two microseconds, so percentiles are off by at most a
+ * quarter and recording costs two atomic additions.
+ * </p>
+ */
+final class VirtualBoxMetrics {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxMetrics.class.getName());
+
+  static final String DOMAIN = "hudson.plugins.virtualbox";
+
+  private static final VirtualBoxMetrics INSTANCE = new VirtualBoxMetrics();
+
+  private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+  private VirtualBoxMetrics() {
+  }
+
+  static VirtualBoxMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return metrics of the host with the given name, created on first use
+   */
+  Host host(String hostName) {
+    Host host = hosts.get(hostName);
+    if (null == host) {
+      host = hosts.computeIfAbsent(hostName, Host::new);
+    }
+    return host;
+  }
+
+  /**
+   * @return metrics of a connection outside of any cloud, like the test of a connection, which are neither kept nor
+   *     exposed
+   */
+  static Host detached() {
+    return new Host(null);
+  }
+
+  Collection<Host> getHosts() {
+    return hosts.values();
+  }
+
+  /**
+   * Removes all MBeans, for example when the plugin stops.
+   */
+  void unregisterAll() {
+    for (Host host : hosts.values()) {
+      unregister(host.objectName);
+      for (Operation operation : host.operations.values()) {
+        unregister(operation.objectName);
+      }
+    }
+    hosts.clear();
+  }
+
+  private static <T> ObjectName register(T bean, Class<T> type, String name) {
+    try {
+      ObjectName objectName = new ObjectName(name);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (!server.isRegistered(objectName)) {
+        server.registerMBean(new StandardMBean(bean, type), objectName);
+      }
+      return objectName;
+    } catch (JMException | RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to register MBean " + name, e);
+      return null;
+    }
+  }
+
+  private static void unregister(ObjectName objectName) {
+    if (null == objectName) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException | RuntimeException e) {
+      LOG.log(Level.FINE, "Unable to unregister MBean " + objectName, e);
+    }
+  }
+
+  /**
+   * Passes new operations to the Metrics plugin, if it is installed.
+   */
+  private static void export(Host host, Operation operation) {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    if (null != jenkins && null != jenkins.getPlugin("metrics")) {
+      try {
+        VirtualBoxMetricsExport.register(host, operation);
+      } catch (LinkageError | RuntimeException e) {
+        LOG.log(Level.FINE, "Unable to export metrics of " + host.name + " to the Metrics plugin", e);
+      }
+    }
+  }
+
+  /**
+   * State of a host, read when the MBean is read.
+   */
+  public interface HostMBean {
+    int getActiveMachines();
+
+    int getActiveMachineLimit();
+
+    int getAdmissionQueueLength();
+
+    long getAdmissionTimeouts();
+
+    int getBootSlots();
+
+    int getBooting();
+
+    int getBootQueueLength();
+  }
+
+  /**
+   * Operations of one host.
+   */
+  static final class Host implements HostMBean {
+    private final String name;
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+    private final ObjectName objectName;
+
+    /**
+     * @param name name of the host, null for detached metrics
+     */
+    private Host(String name) {
+      this.name = name;
+      this.objectName = null == name ? null
+          : register(this, HostMBean.class, DOMAIN + ":type=Host,name=" + ObjectName.quote(name));
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * @return operation with the given name, created on first use
+     */
+    Operation operation(String operationName) {
+      Operation operation = operations.get(operationName);
+      if (null == operation) {
+        boolean[] created = new boolean[1];
+        operation = operations.computeIfAbsent(operationName, n -> {
+          created[0] = true;
+          return new Operation(name, n);
+        });
+        if (created[0] && null != name) {
+          export(this, operation);
+        }
+      }
+      return operation;
+    }
+
+    Collection<Operation> getOperations() {
+      return operations.values();
+    }
+
+    /**
+     * Starts timing an operation, which counts as in flight until the returned timer is closed.
+     */
+    Timer start(String operationName) {
+      return new Timer(operation(operationName));
+    }
+
+    void record(String operationName, long nanos, boolean failed) {
+      operation(operationName).record(nanos, failed);
+    }
+
+    private VirtualBoxCloud cloud() {
+      return VirtualBoxPlugin.getHost(name);
+    }
+
+    @Override
+    public int getActiveMachines() {
+      VirtualBoxCloud cloud = cloud();
+      return null == cloud ? 0 : cloud.getActiveMachines();
+    }
+
+    @Override
+    public int getActiveMachineLimit() {
+      VirtualBoxCloud cloud = cloud();
+      return null == cloud ? 0 : cloud.getActiveMachineLimit();
+    }
+
+    @Override
+    public int getAdmissionQueueLength() {
+      VirtualBoxCloud cloud = cloud();
+      return null == cloud ? 0 : cloud.getAdmissionQueueLength();
+    }
+
+    @Override
+    public long getAdmissionTimeouts() {
+      VirtualBoxCloud cloud = cloud();
+      return null == cloud ? 0 : cloud.getAdmissionTimeouts();
+    }
+
+    @Override
+    public int getBootSlots() {
+      VirtualBoxCloud cloud = cloud();
+      return null == cloud ? 0 : cloud.getBootScheduler().getSlots();
+    }
+
+    @Override
+    public int getBooting() {
+      VirtualBoxCloud cloud = cloud();
+      return null == cloud ? 0 : cloud.getBootScheduler().getBooting();
+    }
+
+    @Override
+    public int getBootQueueLength() {
+      VirtualBoxCloud cloud = cloud();
+      return null == cloud ? 0 : cloud.getBootScheduler().getQueueLength();
+    }
+  }
+
+  /**
+   * Latencies of one operation of a host.
+   */
+  public interface OperationMBean {
+    long getCount();
+
+    long getErrors();
+
+    int getInFlight();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP95Millis();
+
+    double getP99Millis();
+
+    /**
+     * Starts counting anew, for example to compare before and after a change of the limits.
+     */
+    void reset();
+  }
+
+  static final class Operation implements OperationMBean {
+    private static final int BUCKETS = 160;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long maxMicros;
+    private final ObjectName objectName;
+
+    private Operation(String hostName, String name) {
+      this.name = name;
+      this.objectName = null == hostName ? null : register(this, OperationMBean.class, DOMAIN + ":type=Operation,host="
+          + ObjectName.quote(hostName) + ",name=" + ObjectName.quote(name));
+    }
+
+    String getName() {
+      return name;
+    }
+
+    void record(long nanos, boolean failed) {
+      long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+      buckets.incrementAndGet(bucketOf(micros));
+      count.increment();
+      totalMicros.add(micros);
+      if (failed) {
+        errors.increment();
+      }
+      if (micros > maxMicros) {
+        // a lost race only loses a maximum which is about the same
+        maxMicros = micros;
+      }
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+
+    @Override
+    public long getErrors() {
+      return errors.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+      long n = count.sum();
+      return 0 == n ? 0 : totalMicros.sum() / 1000.0 / n;
+    }
+
+    @Override
+    public double getMaxMillis() {
+      return maxMicros / 1000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+      return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getP95Millis() {
+      return getPercentileMillis(0.95);
+    }
+
+    @Override
+    public double getP99Millis() {
+      return getPercentileMillis(0.99);
+    }
+
+    /**
+     * @return upper bound of the bucket which holds the given share of the latencies
+     */
+    double getPercentileMillis(double share) {
+      long[] snapshot = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        snapshot[i] = buckets.get(i);
+        total += snapshot[i];
+      }
+      if (0 == total) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(share * total);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) {
+          return Math.min(upperBound(i), maxMicros) / 1000.0;
+        }
+      }
+      return maxMicros / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+      count.reset();
+      errors.reset();
+      totalMicros.reset();
+      maxMicros = 0;
+    }
+
+    /**
+     * @return bucket of the latency, buckets 0 to 3 hold exact values, then every power of two is split in four
+     */
+    static int bucketOf(long micros) {
+      if (micros < 4) {
+        return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      int sub = (int) (micros >>> (exponent - 2)) & 3;
+      return Math.min(BUCKETS - 1, (exponent - 1) * 4 + sub);
+    }
+
+    /**
+     * @return largest latency in microseconds which goes into the bucket
+     */
+    static long upperBound(int bucket) {
+      if (bucket < 4) {
+        return bucket;
+      }
+      int exponent = bucket / 4 + 1;
+      return ((5L + bucket % 4) << (exponent - 2)) - 1;
+    }
+  }
+
+  /**
+   * Times one operation, which fails unless {@link #succeeded()} is called before {@link #close()}.
+   */
+  static final class Timer implements AutoCloseable {
+    private final Operation operation;
+    private final long started = System.nanoTime();
+    private boolean succeeded;
+    private boolean closed;
+
+    private Timer(Operation operation) {
+      this.operation = operation;
+      operation.inFlight.incrementAndGet();
+    }
+
+    void succeeded() {
+      succeeded = true;
+    }
+
+    /**
+     * @param succeeded whether the operation succeeded
+     */
+    void finished(boolean succeeded) {
+      this.succeeded = succeeded;
+      close();
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        operation.inFlight.decrementAndGet();
+        operation.record(System.nanoTime() - started, !succeeded);
+      }
+    }
+  }
+}
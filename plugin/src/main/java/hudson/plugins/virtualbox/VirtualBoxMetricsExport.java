@@ -0,0 +1,83 @@
+package hudson.plugins.virtualbox;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import hudson.Extension;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jenkins.metrics.api.MetricProvider;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Publishes {@link VirtualBoxMetrics} through the Metrics plugin. Only loaded if the plugin is installed.
+ * <p>
+ * Operations are only known once they ran, so their gauges are added to the registry of the Metrics plugin as they
+ * appear, named {@code virtualbox.<host>.<operation>.<value>}. The {@link Provider} adds the numbers which are not
+ * per operation.
+ * </p>
+ */
+final class VirtualBoxMetricsExport {
+
+  private VirtualBoxMetricsExport() {
+  }
+
+  static void register(VirtualBoxMetrics.Host host, VirtualBoxMetrics.Operation operation) {
+    MetricRegistry registry = Metrics.metricRegistry();
+    String hostPrefix = MetricRegistry.name("virtualbox", host.getName());
+    register(registry, hostPrefix, "activeMachines", host::getActiveMachines);
+    register(registry, hostPrefix, "activeMachineLimit", host::getActiveMachineLimit);
+    register(registry, hostPrefix, "admissionQueueLength", host::getAdmissionQueueLength);
+    register(registry, hostPrefix, "admissionTimeouts", host::getAdmissionTimeouts);
+    register(registry, hostPrefix, "bootSlots", host::getBootSlots);
+    register(registry, hostPrefix, "booting", host::getBooting);
+    register(registry, hostPrefix, "bootQueueLength", host::getBootQueueLength);
+
+    String prefix = MetricRegistry.name(hostPrefix, operation.getName());
+    register(registry, prefix, "count", operation::getCount);
+    register(registry, prefix, "errors", operation::getErrors);
+    register(registry, prefix, "inFlight", operation::getInFlight);
+    register(registry, prefix, "meanMillis", operation::getMeanMillis);
+    register(registry, prefix, "maxMillis", operation::getMaxMillis);
+    register(registry, prefix, "p50Millis", operation::getP50Millis);
+    register(registry, prefix, "p95Millis", operation::getP95Millis);
+    register(registry, prefix, "p99Millis", operation::getP99Millis);
+  }
+
+  private static <T> void register(MetricRegistry registry, String prefix, String name, Gauge<T> gauge) {
+    String fullName = MetricRegistry.name(prefix, name);
+    // the registry outlives a restart of the plugin
+    if (!registry.getNames().contains(fullName)) {
+      try {
+        registry.register(fullName, gauge);
+      } catch (IllegalArgumentException e) {
+        // registered concurrently
+      }
+    }
+  }
+
+  /**
+   * Numbers of the plugin as a whole.
+   */
+  @Extension(optional = true)
+  public static class Provider extends MetricProvider {
+    @Override
+    public MetricSet getMetricSet() {
+      return () -> {
+        Map<String, Metric> metrics = new HashMap<>();
+        VirtualBoxDemandPredictor predictor = VirtualBoxDemandPredictor.get();
+        metrics.put("virtualbox.prestart.hits", (Gauge<Long>) predictor::getHits);
+        metrics.put("virtualbox.prestart.misses", (Gauge<Long>) predictor::getMisses);
+        metrics.put("virtualbox.prestart.hitRate", (Gauge<Double>) predictor::getHitRate);
+        metrics.put("virtualbox.prestart.wastedMinutes", (Gauge<Long>) predictor::getWastedMinutes);
+        VirtualBoxDiscoveryResponder responder = VirtualBoxDiscoveryResponder.get();
+        metrics.put("virtualbox.discovery.probes", (Gauge<Long>) responder::getProbes);
+        metrics.put("virtualbox.discovery.answers", (Gauge<Long>) responder::getAnswers);
+        return metrics;
+      };
+    }
+  }
+}
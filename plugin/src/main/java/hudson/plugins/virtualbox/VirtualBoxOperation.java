@@ -0,0 +1,46 @@
+package hudson.plugins.virtualbox;
+
+/**
+ * Start or stop of a virtual machine which may still be in progress on the host.
+ * <p>
+ * The machine stays locked until {@link #finish()} is called, which must happen exactly once, after
+ * {@link #isDone()} returned true or {@link #await()} returned. Any thread may call it.
+ * </p>
+ */
+public interface VirtualBoxOperation {
+
+  /**
+   * @return true if the host completed the operation, never blocks for long
+   */
+  public boolean isDone();
+
+  /**
+   * Blocks until the host completed the operation.
+   */
+  public void await();
+
+  /**
+   * Releases the session and the machine lock held by the operation.
+   *
+   * @return result code, 0 on success
+   */
+  public long finish();
+
+  /**
+   * @return operation which needed no work on the host
+   */
+  public static VirtualBoxOperation completed(final long result) {
+    return new VirtualBoxOperation() {
+      public boolean isDone() {
+        return true;
+      }
+
+      public void await() {
+      }
+
+      public long finish() {
+        return result;
+      }
+    };
+  }
+}
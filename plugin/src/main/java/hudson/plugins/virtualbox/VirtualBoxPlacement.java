@@ -0,0 +1,220 @@
+package hudson.plugins.virtualbox;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which of the {@link VirtualBoxCloud}s able to run a label starts the next machine for it.
+ * <p>
+ * Jenkins offers a label to every cloud in turn and the first one to plan a node gets the build. Before planning a
+ * node, a cloud asks whether it is the least loaded host for the label and leaves the node to another cloud if it
+ * is not, so that busy hosts are skipped in favor of idle ones.
+ * </p>
+ * <p>
+ * A host is scored by the share of its memory still free, the virtual processors of its running machines per
+ * online processor of the host and how long its recent launches took. Memory and launches under way count as used
+ * already, since the host reports them only once the machines run. A host without enough free memory for the
+ * machine, or with as many launches under way as it may run at once, is not considered at all.
+ * </p>
+ * <p>
+ * The load of a host is read in the background when it is older than {@link #LOAD_TTL}, and its machines are taken
+ * from its inventory as last fetched, so an unreachable host never holds up provisioning. A host whose load is not
+ * known yet ranks behind all hosts whose load is known, and is compared to other such hosts by its machines and
+ * launches only.
+ * </p>
+ */
+final class VirtualBoxPlacement {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxPlacement.class.getName());
+
+  private static final long LOAD_TTL = TimeUnit.SECONDS.toMillis(
+      Long.getLong(VirtualBoxPlacement.class.getName() + ".loadTtl", 15));
+
+  /**
+   * Weight of the latest launch in the average launch time.
+   */
+  private static final double LATENCY_WEIGHT = 0.3;
+
+  /**
+   * Launch time which costs as much score as a fully used host.
+   */
+  private static final double LATENCY_SCALE = TimeUnit.MINUTES.toMillis(5);
+
+  private static final VirtualBoxPlacement INSTANCE = new VirtualBoxPlacement();
+
+  /**
+   * Load of every cloud, by cloud name.
+   */
+  private final Map<String, HostState> hosts = new ConcurrentHashMap<>();
+
+  private VirtualBoxPlacement() {
+  }
+
+  static VirtualBoxPlacement get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param memorySize memory of the machine to start in megabytes, 0 if not known
+   * @return whether no other cloud is better suited to start a machine for the label
+   */
+  boolean isBestHost(VirtualBoxCloud cloud, Label label, long memorySize) {
+    double score = score(cloud, label, memorySize);
+    if (Double.isNaN(score)) {
+      return false;
+    }
+    boolean known = isLoadKnown(cloud);
+    for (VirtualBoxCloud other : VirtualBoxPlugin.getHosts()) {
+      if (other == cloud || other.name.equals(cloud.name)) {
+        continue;
+      }
+      double otherScore = score(other, label, memorySize);
+      if (Double.isNaN(otherScore)) {
+        continue;
+      }
+      boolean otherKnown = isLoadKnown(other);
+      if ((otherKnown && !known) || (otherKnown == known
+          && (otherScore > score || (otherScore == score && other.name.compareTo(cloud.name) < 0)))) {
+        LOG.log(Level.FINE, "Leaving {0} to {1}", new Object[]{label, other.name});
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Counts a launch which has not yet shown up in the load of the host.
+   */
+  void launchStarted(VirtualBoxCloud cloud, long memorySize) {
+    getState(cloud).launchStarted(memorySize);
+  }
+
+  /**
+   * @param millis time from planning the node until its agent was online, for failed launches the launch timeout
+   */
+  void launchFinished(VirtualBoxCloud cloud, long memorySize, long millis) {
+    getState(cloud).launchFinished(memorySize, millis);
+  }
+
+  /**
+   * @return score of the cloud for a new machine, higher is better, NaN if the cloud can't take the machine
+   */
+  private double score(VirtualBoxCloud cloud, Label label, long memorySize) {
+    if (!cloud.canProvision(label) || cloud.getAvailableMachines() < 1 || !cloud.hasFreeMachine(label)) {
+      return Double.NaN;
+    }
+    HostState state = getState(cloud);
+    VirtualBoxHostLoad load = state.getLoad(cloud);
+    int launching;
+    long pendingMemory;
+    double latency;
+    synchronized (state) {
+      launching = state.launching;
+      pendingMemory = state.pendingMemory;
+      latency = state.latency;
+    }
+    if (launching >= cloud.getMaxConcurrentLaunches()) {
+      return Double.NaN;
+    }
+
+    int running = launching;
+    int virtualProcessors = launching;
+    // a synchronous inventory pass over another host would hold up provisioning on this one
+    List<VirtualBoxMachine> machines = cloud.getCachedVirtualMachines();
+    for (VirtualBoxMachine machine : null == machines ? Collections.<VirtualBoxMachine>emptyList() : machines) {
+      if ("Running".equals(machine.getState())) {
+        running++;
+        virtualProcessors += Math.max(1, machine.getCpuCount());
+      }
+    }
+
+    double score = 0;
+    if (isKnown(load)) {
+      long free = load.getMemoryAvailable() - pendingMemory;
+      if (free < memorySize) {
+        // starting the machine would make the host swap
+        return Double.NaN;
+      }
+      score += (double) free / load.getMemorySize();
+      score -= (double) virtualProcessors / Math.max(1, load.getProcessorCount());
+    } else {
+      score -= running;
+    }
+    score -= latency / LATENCY_SCALE;
+    return score;
+  }
+
+  /**
+   * @return whether the load of the cloud was read, never reads it
+   */
+  private boolean isLoadKnown(VirtualBoxCloud cloud) {
+    return isKnown(getState(cloud).load);
+  }
+
+  private static boolean isKnown(VirtualBoxHostLoad load) {
+    return null != load && load.getMemorySize() > 0;
+  }
+
+  private HostState getState(VirtualBoxCloud cloud) {
+    return hosts.computeIfAbsent(cloud.name, name -> new HostState());
+  }
+
+  private static final class HostState {
+    private final AtomicBoolean reading = new AtomicBoolean();
+    private volatile VirtualBoxHostLoad load;
+    private volatile long loadRead;
+
+    /**
+     * Launches under way and the memory of their machines, guarded by this.
+     */
+    private int launching;
+    private long pendingMemory;
+    private volatile double latency;
+
+    /**
+     * @return last load read from the host, null if it was never read
+     */
+    VirtualBoxHostLoad getLoad(VirtualBoxCloud cloud) {
+      if (System.currentTimeMillis() - loadRead > LOAD_TTL && reading.compareAndSet(false, true)) {
+        Computer.threadPoolForRemoting.submit(() -> {
+          try {
+            VirtualBoxHostLoad read = VirtualBoxUtils.getHostLoad(cloud,
+                new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+            if (null != read) {
+              load = read;
+            }
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to read the load of " + cloud.getUrl(), e);
+          } finally {
+            // failures are not retried before the load would be read again anyway
+            loadRead = System.currentTimeMillis();
+            reading.set(false);
+          }
+        });
+      }
+      return load;
+    }
+
+    synchronized void launchStarted(long memorySize) {
+      launching++;
+      pendingMemory += memorySize;
+    }
+
+    synchronized void launchFinished(long memorySize, long millis) {
+      launching--;
+      pendingMemory -= memorySize;
+      latency = 0 == latency ? millis : LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT) * latency;
+      // the machine uses its memory now, make sure the next placement sees it
+      loadRead = 0;
+    }
+  }
+}
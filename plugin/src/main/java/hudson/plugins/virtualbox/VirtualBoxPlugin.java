@@ -1,12 +1,18 @@
 package hudson.plugins.virtualbox;
 
 import hudson.Plugin;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.slaves.Cloud;
+import hudson.slaves.SlaveComputer;
 import hudson.util.ListBoxModel;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
@@ -33,10 +39,28 @@ public class VirtualBoxPlugin extends Plugin {
     super.start();
   }
 
+  /**
+   * Connects to all hosts once the clouds are loaded, which happens after {@link #start()}, so that the
+   * first launch after a restart does not wait for the login and the version handshake. Starts answering the
+   * discovery probes of the machines as well, see {@link VirtualBoxDiscoveryResponder}.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void prewarmConnections() {
+    for (VirtualBoxCloud host : getHosts()) {
+      LOG.log(Level.INFO, "Connecting to {0}", host.getUrl());
+      VirtualBoxUtils.prewarm(host, new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+    }
+    VirtualBoxMacIndex.get().refreshAsync();
+    VirtualBoxDiscoveryResponder.get().start();
+  }
+
   @Override
   public void stop() throws Exception {
     LOG.log(Level.INFO, "Stopping {0}", getClass().getSimpleName());
     super.stop();
+    VirtualBoxDiscoveryResponder.get().stop();
+    VirtualBoxProgressScheduler.get().stop();
+    VirtualBoxMetrics.get().unregisterAll();
     // close VirtualBox WEB sessions
     VirtualBoxUtils.disconnectAll();
   }
@@ -80,7 +104,8 @@ public class VirtualBoxPlugin extends Plugin {
     if (host == null) {
       return Collections.emptyList();
     }
-    return host.refreshVirtualMachinesList();
+    // served from the inventory cache, so rendering forms does not query the host
+    return host.getVirtualMachines();
   }
 
   /**
@@ -135,6 +160,10 @@ public class VirtualBoxPlugin extends Plugin {
    * redirects to
    * http://localhost:8080/hudson/computer/virtual/slave-agent.jnlp
    * </p>
+   * <p>
+   * Any network adapter of the machine matches, see {@link VirtualBoxMacIndex}. The hosts are never asked while
+   * the request waits, a machine of a node which is not indexed yet gets HTTP 404 until the index is rebuilt.
+   * </p>
    *
    * @param req        request
    * @param resp       response
@@ -146,21 +175,61 @@ public class VirtualBoxPlugin extends Plugin {
       throws IOException {
     LOG.log(Level.INFO, "Searching VirtualBox machine with MacAddress {0}", macAddress);
     Jenkins jenkins = Jenkins.getInstance();
-    for (Node node : jenkins.getNodes()) {
-      if (node instanceof VirtualBoxSlave) {
-        VirtualBoxSlave slave = (VirtualBoxSlave) node;
-        VirtualBoxMachine vbox = getVirtualBoxMachine(slave.getHostName(), slave.getVirtualMachineName());
-
-        String vboxMacAddress = VirtualBoxUtils.getMacAddress(vbox, new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
-        LOG.log(Level.INFO, "MacAddress for {0} is {1}", new Object[]{slave.getNodeName(), vboxMacAddress});
+    // answered from the index, so agents booting together do not query the hosts for every node
+    String nodeName = null == macAddress ? null : VirtualBoxMacIndex.get().findNodeNow(Collections.singletonList(macAddress));
+    Node node = null == nodeName ? null : jenkins.getNode(nodeName);
+    if (node instanceof VirtualBoxSlave) {
+      String url = jenkins.getRootUrl() + "/computer/" + node.getNodeName() + "/slave-agent.jnlp";
+      LOG.log(Level.INFO, "Found {0} for Mac Address {1}, sending redirect to {2}", new Object[]{node, macAddress, url});
+      resp.sendRedirect(url);
+      return;
+    }
+    resp.sendError(404);
+  }
 
-        if (macAddress.equalsIgnoreCase(vboxMacAddress)) {
-          String url = jenkins.getRootUrl() + "/computer/" + slave.getNodeName() + "/slave-agent.jnlp";
-          LOG.log(Level.INFO, "Found {0} for Mac Address {1}, sending redirect to {2}", new Object[]{slave, macAddress, url});
-          resp.sendRedirect(url);
-          return;
-        }
+  /**
+   * Used by the client in the machine of a {@link VirtualBoxSlave} to find its node and connect in one request.
+   * HTTP 404 Error will be returned, if slave can't be found.
+   * <p>
+   * For example: if slave named "virtual" has a network adapter with MAC Address 080027E852CC, then
+   * http://localhost:8080/hudson/plugin/virtualbox/getAgentEndpoint?macAddresses=0242AC110002,080027E852CC
+   * returns the name of the node, the URL of Jenkins and the secret of the agent, see {@link VirtualBoxAgentEndpoint}.
+   * Unlike {@link #doGetSlaveAgent}, the client sends the addresses of all its network adapters, so an adapter the
+   * machine was not defined with, like a bridge of a container runtime, does not hide the node.
+   * </p>
+   * <p>
+   * The answer has an ETag, a request with a matching If-None-Match header gets HTTP 304 and no body.
+   * </p>
+   *
+   * @param req          request
+   * @param resp         response
+   * @param macAddresses comma separated MAC Addresses of the machine
+   * @throws IOException if something wrong
+   */
+  @SuppressWarnings({"UnusedDeclaration"})
+  public void doGetAgentEndpoint(StaplerRequest req, StaplerResponse resp,
+                                 @QueryParameter("macAddresses") String macAddresses) throws IOException {
+    LOG.log(Level.FINE, "Searching VirtualBox machine with MacAddresses {0}", macAddresses);
+    Jenkins jenkins = Jenkins.getInstance();
+    String nodeName = null == macAddresses ? null
+        : VirtualBoxMacIndex.get().findNodeNow(Arrays.asList(macAddresses.split(",")));
+    Computer computer = null == nodeName ? null : jenkins.getComputer(nodeName);
+    if (computer instanceof SlaveComputer && computer.getNode() instanceof VirtualBoxSlave) {
+      // the same permission as for the JNLP file of the node, which holds the secret too
+      computer.checkPermission(Computer.CONNECT);
+      LOG.log(Level.INFO, "Found {0} for Mac Addresses {1}", new Object[]{nodeName, macAddresses});
+      String xml = VirtualBoxAgentEndpoint.of((SlaveComputer) computer, true).toXml();
+      // lets the client revalidate the endpoint it kept from the last boot without downloading it again
+      String etag = '"' + Util.getDigestOf(xml) + '"';
+      resp.setHeader("ETag", etag);
+      resp.setHeader("Cache-Control", "private, no-cache");
+      if (etag.equals(req.getHeader("If-None-Match"))) {
+        resp.setStatus(304);
+        return;
       }
+      resp.setContentType("application/xml;charset=UTF-8");
+      resp.getWriter().print(xml);
+      return;
     }
     resp.sendError(404);
   }
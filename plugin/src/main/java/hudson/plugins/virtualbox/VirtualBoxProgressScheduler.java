@@ -0,0 +1,173 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the progress of many {@link VirtualBoxOperation}s from a single thread, so that callers get a
+ * future instead of parking a thread per machine inside {@code IProgress.waitForCompletion}.
+ * <p>
+ * Finished operations release their session on a separate pool of threads, which may take a while, so that a slow
+ * host does not hold up the completions on other hosts.
+ * </p>
+ */
+final class VirtualBoxProgressScheduler {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxProgressScheduler.class.getName());
+
+  private static final long POLL_INTERVAL = Long.getLong(VirtualBoxProgressScheduler.class.getName() + ".pollInterval", 500);
+
+  private static final VirtualBoxProgressScheduler INSTANCE = new VirtualBoxProgressScheduler();
+
+  private final Map<VirtualBoxOperation, CompletableFuture<Long>> pending = new ConcurrentHashMap<>();
+
+  /**
+   * Polls the operations, null until the first operation is watched and after {@link #stop()}.
+   */
+  private ScheduledExecutorService executor;
+  private ExecutorService finisher;
+
+  private VirtualBoxProgressScheduler() {
+  }
+
+  static VirtualBoxProgressScheduler get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return future completed with the result code of the operation once the host finished it
+   */
+  CompletableFuture<Long> watch(VirtualBoxOperation operation) {
+    CompletableFuture<Long> future = new CompletableFuture<>();
+    boolean done;
+    try {
+      done = operation.isDone();
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to track VirtualBox operation", e);
+      // the operation still holds its machine lock and connection, which only the finish releases
+      start();
+      finish(operation, future, e);
+      return future;
+    }
+    if (done) {
+      // nothing to wait for, do not make the caller wait for the next poll
+      try {
+        future.complete(operation.finish());
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to finish VirtualBox operation", e);
+        future.completeExceptionally(e);
+      }
+    } else {
+      pending.put(operation, future);
+      start();
+    }
+    return future;
+  }
+
+  /**
+   * @return number of operations still in progress
+   */
+  int getPendingCount() {
+    return pending.size();
+  }
+
+  private synchronized void start() {
+    if (null != executor) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "VirtualBox progress scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    finisher = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "VirtualBox progress finisher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this::poll, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the threads. Operations still in progress are cancelled without finishing them, as their connections are
+   * closed anyway.
+   */
+  synchronized void stop() {
+    if (null == executor) {
+      return;
+    }
+    executor.shutdownNow();
+    finisher.shutdownNow();
+    executor = null;
+    finisher = null;
+    for (Iterator<CompletableFuture<Long>> it = pending.values().iterator(); it.hasNext(); ) {
+      CompletableFuture<Long> future = it.next();
+      it.remove();
+      future.completeExceptionally(new CancellationException("VirtualBox plugin stopped"));
+    }
+  }
+
+  private void poll() {
+    Iterator<Map.Entry<VirtualBoxOperation, CompletableFuture<Long>>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<VirtualBoxOperation, CompletableFuture<Long>> entry = it.next();
+      VirtualBoxOperation operation = entry.getKey();
+      RuntimeException failure = null;
+      try {
+        if (!operation.isDone()) {
+          continue;
+        }
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to track VirtualBox operation", e);
+        failure = e;
+      }
+      it.remove();
+      finish(operation, entry.getValue(), failure);
+    }
+  }
+
+  /**
+   * @param failure why the progress could not be read, null if the host finished the operation
+   */
+  private void finish(VirtualBoxOperation operation, CompletableFuture<Long> future, RuntimeException failure) {
+    Runnable finish = () -> {
+      try {
+        long result = operation.finish();
+        if (null == failure) {
+          future.complete(result);
+        }
+      } catch (RuntimeException e) {
+        if (null == failure) {
+          LOG.log(Level.WARNING, "Unable to finish VirtualBox operation", e);
+          future.completeExceptionally(e);
+        }
+      } finally {
+        // the machine lock and the session are released anyway
+        if (null != failure) {
+          future.completeExceptionally(failure);
+        }
+      }
+    };
+    synchronized (this) {
+      if (null != finisher) {
+        try {
+          finisher.execute(finish);
+          return;
+        } catch (RejectedExecutionException e) {
+          // stopped meanwhile
+        }
+      }
+    }
+    future.completeExceptionally(new CancellationException("VirtualBox plugin stopped"));
+  }
+}
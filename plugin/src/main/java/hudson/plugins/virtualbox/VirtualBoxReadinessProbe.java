@@ -0,0 +1,117 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Util;
+import hudson.slaves.ComputerLauncher;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells whether a started machine can accept the launcher which connects its agent, so that
+ * {@link VirtualBoxComputerLauncher} hands over to that launcher as soon as possible instead of after a fixed time.
+ */
+interface VirtualBoxReadinessProbe {
+
+  /**
+   * Guest property in which the Guest Additions publish the IP address of the first network adapter.
+   */
+  String GUEST_ADDRESS = "/VirtualBox/GuestInfo/Net/0/V4/IP";
+
+  /**
+   * @return whether the guest is ready, called repeatedly until it is
+   */
+  boolean isReady(VirtualBoxMachine machine, VirtualBoxLogger log);
+
+  /**
+   * @return probes for the launcher, all of which must report ready; empty if nothing is known about the guest
+   *         or the launcher, in which case the launcher has to find out by itself
+   */
+  static List<VirtualBoxReadinessProbe> forLauncher(ComputerLauncher launcher) {
+    List<VirtualBoxReadinessProbe> probes = new ArrayList<>();
+    if (!launcher.isLaunchSupported()) {
+      // the agent connects by itself, nothing to wait for
+      return probes;
+    }
+    TcpPort tcpPort = TcpPort.of(launcher);
+    probes.add(null == tcpPort ? new GuestAddress() : tcpPort);
+    return probes;
+  }
+
+  /**
+   * Ready once the Guest Additions report an IP address, that is once the guest booted and its network is up.
+   */
+  final class GuestAddress implements VirtualBoxReadinessProbe {
+    @Override
+    public boolean isReady(VirtualBoxMachine machine, VirtualBoxLogger log) {
+      return null != VirtualBoxUtils.getGuestProperty(machine, GUEST_ADDRESS, log);
+    }
+
+    @Override
+    public String toString() {
+      return "guest property " + GUEST_ADDRESS;
+    }
+  }
+
+  /**
+   * Ready once the port which the launcher connects to accepts connections. Launchers which connect to the machine,
+   * like the SSH launcher, expose their target as {@code getHost()} and {@code getPort()}. Without a host, the
+   * address reported by the Guest Additions is used.
+   */
+  final class TcpPort implements VirtualBoxReadinessProbe {
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(2);
+
+    private final String host;
+    private final int port;
+
+    TcpPort(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    /**
+     * @return probe for the target of the launcher, null if the launcher does not tell its port
+     */
+    static TcpPort of(ComputerLauncher launcher) {
+      Object port = call(launcher, "getPort");
+      if (!(port instanceof Number) || ((Number) port).intValue() <= 0) {
+        return null;
+      }
+      Object host = call(launcher, "getHost");
+      return new TcpPort(host instanceof String ? Util.fixEmptyAndTrim((String) host) : null,
+          ((Number) port).intValue());
+    }
+
+    @Override
+    public boolean isReady(VirtualBoxMachine machine, VirtualBoxLogger log) {
+      String address = null != host ? host : VirtualBoxUtils.getGuestProperty(machine, GUEST_ADDRESS, log);
+      if (null == address) {
+        return false;
+      }
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "port " + port + " of " + (null != host ? host : "the guest");
+    }
+
+    private static Object call(Object target, String getter) {
+      try {
+        Method method = target.getClass().getMethod(getter);
+        return method.invoke(target);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return null;
+      }
+    }
+  }
+}
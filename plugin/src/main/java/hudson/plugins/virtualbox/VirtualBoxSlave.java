@@ -104,7 +104,7 @@ public class VirtualBoxSlave extends Slave {
   }
 
   /**
-   * @return type of stop mode for virtual machine, can be powerdown or pause
+   * @return type of stop mode for virtual machine, can be powerdown, pause or restore (the current snapshot)
    */
   public String getVirtualMachineStopMode() {
     return virtualMachineStopMode;
@@ -189,7 +189,6 @@ public class VirtualBoxSlave extends Slave {
         return null;
       }
       LOG.log(Level.INFO, "Host name set as " + HostName);
-      LOG.log(Level.INFO, "VBoxSlave object set as " + item.getFullDisplayName());
       ListBoxModel m = VirtualBoxPlugin.getDefinedVirtualMachinesListBox(HostName);
 
 
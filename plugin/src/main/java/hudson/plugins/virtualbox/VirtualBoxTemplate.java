@@ -0,0 +1,185 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.util.FormValidation;
+
+import java.util.Set;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Virtual machine of a {@link VirtualBoxCloud} which is turned into an agent on demand, when a build needs one of
+ * its labels.
+ * <p>
+ * Agents made from templates connect through JNLP, the machine finds its agent with
+ * {@link VirtualBoxPlugin#doGetSlaveAgent}.
+ * </p>
+ * <p>
+ * An agent runs either on the template machine itself, or, if a snapshot is configured, on a linked clone of that
+ * snapshot which serves a single build and is deleted afterwards. Linked clones share the disks of the snapshot,
+ * so they are created in seconds and many of them can run side by side.
+ * </p>
+ */
+public class VirtualBoxTemplate extends AbstractDescribableImpl<VirtualBoxTemplate> {
+
+  /**
+   * Minutes an agent may stay idle before it is removed when none is configured.
+   */
+  public static final int DEFAULT_IDLE_MINUTES = 10;
+
+  private final String virtualMachineName;
+  private final String labelString;
+  private final String remoteFS;
+  private final int numExecutors;
+  private final String virtualMachineType;
+  private final String virtualMachineStopMode;
+  private final int idleMinutes;
+  private boolean keepWarm;
+  private String snapshotName;
+  private int maxInstances = 1;
+
+  private transient Set<LabelAtom> labelSet;
+
+  @DataBoundConstructor
+  public VirtualBoxTemplate(String virtualMachineName, String labelString, String remoteFS, int numExecutors,
+                            String virtualMachineType, String virtualMachineStopMode, int idleMinutes) {
+    this.virtualMachineName = Util.fixEmptyAndTrim(virtualMachineName);
+    this.labelString = Util.fixEmptyAndTrim(labelString);
+    this.remoteFS = remoteFS;
+    this.numExecutors = numExecutors < 1 ? 1 : numExecutors;
+    this.virtualMachineType = virtualMachineType;
+    this.virtualMachineStopMode = virtualMachineStopMode;
+    this.idleMinutes = idleMinutes < 1 ? DEFAULT_IDLE_MINUTES : idleMinutes;
+  }
+
+  public String getVirtualMachineName() {
+    return virtualMachineName;
+  }
+
+  public String getLabelString() {
+    return labelString;
+  }
+
+  public String getRemoteFS() {
+    return remoteFS;
+  }
+
+  public int getNumExecutors() {
+    return numExecutors;
+  }
+
+  /**
+   * @return type of virtual machine, can be headless, vrdp, gui, or sdl
+   */
+  public String getVirtualMachineType() {
+    return virtualMachineType;
+  }
+
+  /**
+   * @return type of stop mode for virtual machine, can be powerdown, pause or restore (the current snapshot)
+   */
+  public String getVirtualMachineStopMode() {
+    return virtualMachineStopMode;
+  }
+
+  /**
+   * @return minutes an agent may stay idle before it is removed
+   */
+  public int getIdleMinutes() {
+    return idleMinutes;
+  }
+
+  /**
+   * @return whether the machine of this template is kept booted and saved, see {@link VirtualBoxWarmPool}
+   */
+  public boolean isKeepWarm() {
+    return keepWarm;
+  }
+
+  @DataBoundSetter
+  public void setKeepWarm(boolean keepWarm) {
+    this.keepWarm = keepWarm;
+  }
+
+  /**
+   * @return snapshot from which single use linked clones are made for every agent, null if agents run on the
+   *         template machine itself
+   */
+  public String getSnapshotName() {
+    return snapshotName;
+  }
+
+  @DataBoundSetter
+  public void setSnapshotName(String snapshotName) {
+    this.snapshotName = Util.fixEmptyAndTrim(snapshotName);
+  }
+
+  /**
+   * @return whether every agent runs on a linked clone of the template machine, which is deleted after one build
+   */
+  public boolean isLinkedClone() {
+    return null != snapshotName;
+  }
+
+  /**
+   * @return maximum number of linked clones of this template at a time
+   */
+  public int getMaxInstances() {
+    return maxInstances < 1 ? 1 : maxInstances;
+  }
+
+  @DataBoundSetter
+  public void setMaxInstances(int maxInstances) {
+    this.maxInstances = maxInstances;
+  }
+
+  /**
+   * @param label label a build is waiting for, null if it can run anywhere
+   * @return whether agents of this template can run the build
+   */
+  public boolean matches(Label label) {
+    if (null == label) {
+      // unlabeled builds only go to templates without labels, like to nodes in exclusive mode
+      return null == labelString;
+    }
+    return label.matches(getLabelSet());
+  }
+
+  private Set<LabelAtom> getLabelSet() {
+    if (null == labelSet) {
+      labelSet = Label.parse(labelString);
+    }
+    return labelSet;
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualBoxTemplate{virtualMachineName='" + virtualMachineName + "', labels='" + labelString + "'}";
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends Descriptor<VirtualBoxTemplate> {
+    @Override
+    public String getDisplayName() {
+      return Messages.VirtualBoxTemplate_displayName();
+    }
+
+    /**
+     * For UI.
+     */
+    @SuppressWarnings({"UnusedDeclaration", "JavaDoc"})
+    public FormValidation doCheckVirtualMachineName(@QueryParameter String value) {
+      if (Util.fixEmptyAndTrim(value) == null) {
+        return FormValidation.error("Virtual Machine Name is mandatory!");
+      }
+      return FormValidation.ok();
+    }
+  }
+}
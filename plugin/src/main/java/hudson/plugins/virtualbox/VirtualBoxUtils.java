@@ -1,8 +1,12 @@
 package hudson.plugins.virtualbox;
 
-import java.util.HashMap;
+import hudson.model.Computer;
+
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Mihai Serban
@@ -12,9 +16,20 @@ public final class VirtualBoxUtils {
   // public methods
   public static long startVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log) {
     try {
-      machine.getHost().incrementActiveMachines();
-      long result = getVboxControl(machine.getHost(), log).startVm(machine, virtualMachineType, log);
-      if (result != 0) { machine.getHost().decrementActiveMachines(); }
+      VirtualBoxAdmission.Result admission = admit(machine, log);
+      if (VirtualBoxAdmission.Result.TIMED_OUT == admission) {
+        return 1;
+      }
+      long result;
+      try {
+        result = withControl(machine.getHost(), log, "startVm",
+            control -> control.startVm(machine, virtualMachineType, log));
+      }
+      catch (InterruptedException | RuntimeException e) {
+        releaseIfAdmitted(machine, admission);
+        throw e;
+      }
+      if (result != 0) { releaseIfAdmitted(machine, admission); }
       return result;
     }
     catch (InterruptedException e) {
@@ -24,24 +39,259 @@ public final class VirtualBoxUtils {
   }
 
   public static long stopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log) {
-    long result = getVboxControl(machine.getHost(), log).stopVm(machine, virtualMachineStopMode, log);
-    if (result == 0) { machine.getHost().decrementActiveMachines(); }
-    return result;
+    try {
+      long result = withControl(machine.getHost(), log, "stopVm",
+          control -> control.stopVm(machine, virtualMachineStopMode, log));
+      if (result == 0) { machine.getHost().getAdmission().release(machine.getName()); }
+      return result;
+    }
+    catch (InterruptedException e) {
+      log.logFatalError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      return 1;
+    }
+  }
+
+  /**
+   * Starts the machine without blocking the calling thread while the host powers it up.
+   *
+   * @return future result code, 0 on success
+   */
+  public static CompletableFuture<Long> startVmAsync(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log) {
+    return startVmAsync(machine, virtualMachineType, machine.getName(), VirtualBoxBootScheduler.LOWEST_PRIORITY, log);
+  }
+
+  /**
+   * Starts the machine without blocking the calling thread while the host powers it up. The calling thread waits
+   * while the active machine limit or the boot slots of the host don't let the machine start yet.
+   *
+   * @param source   machine whose boot times the boot is compared with, see
+   *                 {@link VirtualBoxBootScheduler#acquire(String, String, boolean, int)}
+   * @param priority position of the machine among the machines waiting for a boot slot, see
+   *                 {@link VirtualBoxBootScheduler#priorityOf(hudson.model.Node)}
+   * @return future result code, 0 on success
+   */
+  static CompletableFuture<Long> startVmAsync(VirtualBoxMachine machine, String virtualMachineType, String source,
+                                              int priority, VirtualBoxLogger log) {
+    VirtualBoxCloud host = machine.getHost();
+    VirtualBoxAdmission.Result admission;
+    VirtualBoxBootScheduler boots = host.getBootScheduler();
+    VirtualBoxBootScheduler.Slot slot;
+    try {
+      admission = admit(machine, log);
+      if (VirtualBoxAdmission.Result.TIMED_OUT == admission) {
+        return CompletableFuture.completedFuture(1L);
+      }
+      try {
+        if (boots.getBooting() >= boots.getSlots()) {
+          log.logInfo("node " + machine.getName() + " waiting for one of " + boots.getSlots() + " boot slots");
+        }
+        try (VirtualBoxMetrics.Timer timer = metrics(host).start("bootSlot.wait")) {
+          slot = boots.acquire(machine.getName(), source, "Saved".equals(machine.getState()), priority);
+          timer.succeeded();
+        }
+      }
+      catch (InterruptedException e) {
+        releaseIfAdmitted(machine, admission);
+        throw e;
+      }
+    }
+    catch (InterruptedException e) {
+      log.logFatalError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      return CompletableFuture.completedFuture(1L);
+    }
+    CompletableFuture<Long> result;
+    try {
+      result = watchWithControl(host, log, "startVm",
+          control -> control.beginStartVm(machine, virtualMachineType, log));
+    }
+    catch (InterruptedException e) {
+      boots.finished(slot, false);
+      releaseIfAdmitted(machine, admission);
+      log.logFatalError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      return CompletableFuture.completedFuture(1L);
+    }
+    catch (RuntimeException e) {
+      boots.finished(slot, false);
+      releaseIfAdmitted(machine, admission);
+      throw e;
+    }
+    return result.whenComplete((code, error) -> {
+      boolean succeeded = null == error && code == 0;
+      boots.finished(slot, succeeded);
+      if (!succeeded) { releaseIfAdmitted(machine, admission); }
+    });
+  }
+
+  /**
+   * Stops the machine without blocking the calling thread while the host powers it down or saves its state.
+   *
+   * @return future result code, 0 on success
+   */
+  public static CompletableFuture<Long> stopVmAsync(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log) {
+    VirtualBoxCloud host = machine.getHost();
+    try {
+      return watchWithControl(host, log, "stopVm",
+          control -> control.beginStopVm(machine, virtualMachineStopMode, log))
+          .whenComplete((code, error) -> {
+            if (null == error && code == 0) { host.getAdmission().release(machine.getName()); }
+          });
+    }
+    catch (InterruptedException e) {
+      log.logFatalError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      return CompletableFuture.completedFuture(1L);
+    }
+  }
+
+  /**
+   * Creates a linked clone of a snapshot of the machine, which does not count as an active machine until it is
+   * started.
+   *
+   * @return UUID of the clone, null if it could not be created
+   */
+  public static String cloneVm(VirtualBoxMachine machine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+    try {
+      return withControl(machine.getHost(), log, "cloneVm",
+          control -> control.cloneVm(machine, snapshotName, cloneName, log));
+    }
+    catch (InterruptedException e) {
+      log.logFatalError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Deletes a stopped machine and its disks.
+   *
+   * @return 0 on success
+   */
+  public static long destroyVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    try {
+      long result = withControl(machine.getHost(), log, "destroyVm", control -> control.destroyVm(machine, log));
+      if (result == 0) { machine.getHost().getAdmission().release(machine.getName()); }
+      return result;
+    }
+    catch (InterruptedException e) {
+      log.logFatalError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      Thread.currentThread().interrupt();
+      return 1;
+    }
+  }
+
+  /**
+   * Lists the machines of a host which is not configured yet, with a connection of its own, so that the pool of a
+   * configured cloud of the same host is left alone.
+   */
+  static List<VirtualBoxMachine> testConnection(VirtualBoxCloud host, VirtualBoxLogger log) {
+    // outside of any cloud, so nothing is kept under the name of the host
+    VirtualBoxControl control = new VirtualBoxControlPool(host, 1, host.getConnector(), VirtualBoxMetrics.detached())
+        .connect(log);
+    try {
+      return control.getMachines(host, log);
+    }
+    finally {
+      control.disconnect();
+    }
   }
 
   public static List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
-    return getVboxControl(host, log).getMachines(host, log);
+    try {
+      return withControl(host, log, "getMachines", control -> control.getMachines(host, log));
+    }
+    catch (InterruptedException e) {
+      log.logError("host " + host.getDisplayName() + " error: InterruptedException thrown while waiting!");
+      Thread.currentThread().interrupt();
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * @return free memory and processors of the host, null if it could not be read
+   */
+  static VirtualBoxHostLoad getHostLoad(VirtualBoxCloud host, VirtualBoxLogger log) {
+    try {
+      return withControl(host, log, "getHostLoad", control -> control.getHostLoad(log));
+    }
+    catch (InterruptedException e) {
+      log.logError("host " + host.getDisplayName() + " error: InterruptedException thrown while waiting!");
+      Thread.currentThread().interrupt();
+      return null;
+    }
   }
 
   public static String getMacAddress(VirtualBoxMachine machine, VirtualBoxLogger log) {
-    return getVboxControl(machine.getHost(), log).getMacAddress(machine, log);
+    try {
+      return withControl(machine.getHost(), log, "getMacAddress", control -> control.getMacAddress(machine, log));
+    }
+    catch (InterruptedException e) {
+      log.logError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * @return value of the guest property, null if it is not set or could not be read
+   */
+  static String getGuestProperty(VirtualBoxMachine machine, String name, VirtualBoxLogger log) {
+    try {
+      return withControl(machine.getHost(), log, "getGuestProperty",
+          control -> control.getGuestProperty(machine, name, log));
+    }
+    catch (InterruptedException e) {
+      log.logError("node " + machine.getName() + " error: InterruptedException thrown while waiting!");
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * @return number of state and guest property changes of the machine seen so far, see
+   *         {@link #awaitChange(VirtualBoxMachine, long, long)}
+   */
+  static long getChangeCount(VirtualBoxMachine machine) {
+    return getPool(machine.getHost()).getEvents().getGeneration(machine.getId());
+  }
+
+  /**
+   * Waits until the state or a guest property of the machine changes, but no longer than the given time.
+   *
+   * @param seen change count read before the machine was checked
+   * @throws InterruptedException if interrupted while waiting
+   */
+  static void awaitChange(VirtualBoxMachine machine, long seen, long millis) throws InterruptedException {
+    getPool(machine.getHost()).getEvents().awaitAtMost(machine.getId(), seen, millis);
+  }
+
+  /**
+   * Opens the first connection to the host in the background.
+   */
+  public static void prewarm(VirtualBoxCloud host, VirtualBoxLogger log) {
+    Computer.threadPoolForRemoting.submit(() -> {
+      try {
+        getPool(host).prewarm(log);
+      } catch (InterruptedException e) {
+        log.logWarning("Connection to " + host.getUrl() + " interrupted");
+      } catch (RuntimeException e) {
+        log.logWarning("Unable to connect to " + host.getUrl() + ": " + e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Checks the idle connections of every host, see {@link VirtualBoxControlPool#keepAlive(VirtualBoxLogger)}.
+   */
+  static void keepAlive(VirtualBoxLogger log) {
+    for (VirtualBoxControlPool pool : vboxControlPools.values()) {
+      Computer.threadPoolForRemoting.submit(() -> pool.keepAlive(log));
+    }
   }
 
   public static void disconnectAll() {
-    for (Map.Entry<String, VirtualBoxControl> entry : vboxControls.entrySet()) {
-      entry.getValue().disconnect();
+    for (VirtualBoxControlPool pool : vboxControlPools.values()) {
+      pool.close();
     }
-    vboxControls.clear();
+    vboxControlPools.clear();
   }
 
   // private methods
@@ -49,50 +299,208 @@ public final class VirtualBoxUtils {
   }
 
   /**
-   * Cache connections to VirtualBox hosts
-   * TODO: keep the connections alive with a no-op
+   * Pools of connections to VirtualBox hosts, kept alive by {@link VirtualBoxKeepAlive}
    */
-  private static HashMap<String, VirtualBoxControl> vboxControls = new HashMap<>();
+  private static final ConcurrentMap<String, VirtualBoxControlPool> vboxControlPools = new ConcurrentHashMap<>();
 
-  private synchronized static VirtualBoxControl getVboxControl(VirtualBoxCloud host, VirtualBoxLogger log) {
-    VirtualBoxControl vboxControl = vboxControls.get(host.toString());
-    if (null != vboxControl) {
-      if (vboxControl.isConnected()) {
-        return vboxControl;
+  /**
+   * Waits until the active machine limit of the host lets the machine start.
+   */
+  private static VirtualBoxAdmission.Result admit(VirtualBoxMachine machine, VirtualBoxLogger log)
+      throws InterruptedException {
+    VirtualBoxAdmission admission = machine.getHost().getAdmission();
+    if (admission.getAvailable() < 1) {
+      log.logInfo("node " + machine.getName() + " waiting for the active machine limit, " + admission.getQueueLength()
+          + " machines ahead");
+    }
+    VirtualBoxAdmission.Result result;
+    try (VirtualBoxMetrics.Timer timer = metrics(machine.getHost()).start("admission.wait")) {
+      result = admission.acquire(machine.getName());
+      if (VirtualBoxAdmission.Result.TIMED_OUT != result) {
+        timer.succeeded();
       }
-      log.logInfo("Lost connection to " + host.getUrl() + ", reconnecting");
-      vboxControls.remove(host.toString()); // force a reconnect
     }
-    vboxControl = createVboxControl(host, log);
+    if (VirtualBoxAdmission.Result.TIMED_OUT == result) {
+      log.logFatalError("node " + machine.getName() + " error: active machine limit of "
+          + machine.getHost().getDisplayName() + " reached, gave up waiting");
+    }
+    return result;
+  }
 
-    vboxControls.put(host.toString(), vboxControl);
-    return vboxControl;
+  /**
+   * Gives back a permit taken for a start which failed, permits the machine held before are left alone.
+   */
+  private static void releaseIfAdmitted(VirtualBoxMachine machine, VirtualBoxAdmission.Result admission) {
+    if (VirtualBoxAdmission.Result.ADMITTED == admission) {
+      machine.getHost().getAdmission().release(machine.getName());
+    }
   }
 
-  private static VirtualBoxControl createVboxControl(VirtualBoxCloud host, VirtualBoxLogger log) {
-    VirtualBoxControl vboxControl = null;
+  private interface ControlCall<T> {
+    T call(VirtualBoxControl control);
+  }
+
+  /**
+   * Runs the call with a connection checked out of the pool of the host.
+   *
+   * @param operation name of the operation in the {@link VirtualBoxMetrics} of the host, which include the wait for a
+   *                  connection; result codes other than 0 count as errors
+   */
+  private static <T> T withControl(VirtualBoxCloud host, VirtualBoxLogger log, String operation, ControlCall<T> call)
+      throws InterruptedException {
+    VirtualBoxMetrics.Host metrics = metrics(host);
+    try (VirtualBoxMetrics.Timer timer = metrics.start(operation)) {
+      VirtualBoxControlPool pool = getPool(host);
+      VirtualBoxControl control = checkout(pool, metrics, log);
+      boolean succeeded = false;
+      try {
+        T result = call.call(control);
+        succeeded = true;
+        timer.finished(!(result instanceof Long) || 0 == (Long) result);
+        return result;
+      } finally {
+        pool.checkin(control, succeeded);
+      }
+    }
+  }
 
-    log.logInfo("Trying to connect to " + host.getUrl() + ", user " + host.getUsername());
-    String version = null;
+  /**
+   * Begins an operation with a connection checked out of the pool of the host. The connection goes back to the pool
+   * right away and is only taken out again to poll the progress and to finish the operation, so operations in
+   * progress do not hold connections which other callers wait for.
+   *
+   * @param operation name of the operation in the {@link VirtualBoxMetrics} of the host, timed until the host finished
+   */
+  private static CompletableFuture<Long> watchWithControl(VirtualBoxCloud host, VirtualBoxLogger log, String operation,
+                                                          ControlCall<VirtualBoxOperation> call)
+      throws InterruptedException {
+    VirtualBoxMetrics.Host metrics = metrics(host);
+    VirtualBoxMetrics.Timer timer = metrics.start(operation);
+    VirtualBoxControlPool pool;
+    VirtualBoxControl control;
+    VirtualBoxOperation begun;
+    try {
+      pool = getPool(host);
+      control = checkout(pool, metrics, log);
+    }
+    catch (InterruptedException | RuntimeException e) {
+      timer.close();
+      throw e;
+    }
+    try {
+      begun = call.call(control);
+    }
+    catch (RuntimeException e) {
+      timer.close();
+      pool.checkin(control, false);
+      throw e;
+    }
+    pool.pin(control);
+    pool.checkin(control, true);
+    return VirtualBoxProgressScheduler.get().watch(new PooledOperation(pool, control, begun))
+        .whenComplete((code, error) -> timer.finished(null == error && 0 == code));
+  }
 
-    org.virtualbox_5_2.VirtualBoxManager manager = org.virtualbox_5_2.VirtualBoxManager.createInstance(null);
-    manager.connect(host.getUrl(), host.getUsername(), host.getPassword().getPlainText());
-    version = manager.getVBox().getVersion();
-    manager.disconnect();
+  /**
+   * Operation in progress whose connection went back to the pool. The connection is taken out again, never more
+   * than one caller at a time, to poll the progress and to finish the operation.
+   */
+  private static final class PooledOperation implements VirtualBoxOperation {
+    private final VirtualBoxControlPool pool;
+    private final VirtualBoxControl control;
+    private final VirtualBoxOperation operation;
 
-    version = version.substring(0, 3);
-    log.logInfo("Creating connection to VirtualBox version " + version);
+    /**
+     * Whether the connection is still taken out since the operation was found done.
+     */
+    private volatile boolean checkedOut;
 
-    switch (version) {
-      case "6.0": vboxControl = new VirtualBoxControlV60(host.getUrl(), host.getUsername(), host.getPassword());
-                  break;
-      case "5.2": vboxControl = new VirtualBoxControlV52(host.getUrl(), host.getUsername(), host.getPassword());
-                  break;
-      default:    log.logError("VirtualBox version " + version + " not supported.");
-                  throw new UnsupportedOperationException("VirtualBox version " + version + " not supported.");
+    PooledOperation(VirtualBoxControlPool pool, VirtualBoxControl control, VirtualBoxOperation operation) {
+      this.pool = pool;
+      this.control = control;
+      this.operation = operation;
     }
 
-    log.logInfo("Connected to VirtualBox version " + version + " on host " + host.getUrl());
-    return vboxControl;
+    public boolean isDone() {
+      if (!pool.tryCheckout(control)) {
+        // in use by another caller, poll again later
+        return false;
+      }
+      boolean done = false;
+      boolean succeeded = false;
+      try {
+        done = operation.isDone();
+        succeeded = true;
+        return done;
+      } finally {
+        if (done) {
+          // kept for the finish, which comes next
+          checkedOut = true;
+        } else {
+          pool.checkinPinned(control, succeeded);
+        }
+      }
+    }
+
+    public void await() {
+      if (!checkedOut) {
+        checkedOut = pool.checkout(control);
+      }
+      operation.await();
+    }
+
+    public long finish() {
+      boolean held = checkedOut || pool.checkout(control);
+      checkedOut = false;
+      boolean succeeded = false;
+      try {
+        // a lost connection is used by nobody else, finishing fails but releases the machine lock
+        long result = operation.finish();
+        succeeded = true;
+        return result;
+      } finally {
+        if (held) {
+          pool.checkinPinned(control, succeeded);
+        }
+        pool.unpin(control);
+      }
+    }
+  }
+
+  private static VirtualBoxControl checkout(VirtualBoxControlPool pool, VirtualBoxMetrics.Host metrics,
+                                            VirtualBoxLogger log) throws InterruptedException {
+    try (VirtualBoxMetrics.Timer timer = metrics.start("connection.wait")) {
+      VirtualBoxControl control = pool.checkout(log);
+      timer.succeeded();
+      return control;
+    }
+  }
+
+  static VirtualBoxMetrics.Host metrics(VirtualBoxCloud host) {
+    return VirtualBoxMetrics.get().host(host.getDisplayName());
+  }
+
+  /**
+   * @return pool of the cloud, replaced when the cloud is configured with another host, user or pool size
+   */
+  private static VirtualBoxControlPool getPool(VirtualBoxCloud host) {
+    String key = host.name;
+    String target = host.toString();
+    int size = host.getConnectionPoolSize();
+    VirtualBoxControlPool pool = vboxControlPools.get(key);
+    if (null == pool || pool.getSize() != size || !target.equals(pool.getHost().toString())) {
+      // first use of the cloud, or its configuration changed
+      pool = vboxControlPools.compute(key, (k, current) -> {
+        if (null != current && current.getSize() == size && target.equals(current.getHost().toString())) {
+          return current;
+        }
+        if (null != current) {
+          current.close();
+        }
+        return new VirtualBoxControlPool(host, size, host.getConnector());
+      });
+    }
+    pool.setHost(host);
+    return pool;
   }
 }
@@ -0,0 +1,187 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Machines of the templates of a {@link VirtualBoxCloud} kept booted and saved, so that a provisioned agent only
+ * has to restore its machine and the agent inside, which is already waiting for its node, connects right away.
+ * <p>
+ * Machines of templates kept warm which are powered off and not used by any node are booted, saved again
+ * once the Guest Additions report the network of the guest as up and the agent had a moment to start, all in the
+ * background. A machine which is stopped with the "save" mode is warm
+ * already. Provisioning prefers warm machines and counts hits and misses.
+ * </p>
+ */
+final class VirtualBoxWarmPool {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxWarmPool.class.getName());
+
+  /**
+   * Longest wait for a booting machine to report its address, after which it is saved anyway, for guests without
+   * Guest Additions.
+   */
+  private static final long WARMUP = TimeUnit.SECONDS.toMillis(
+      Long.getLong(VirtualBoxWarmPool.class.getName() + ".warmupSeconds", 120));
+
+  /**
+   * Time given to the agent to start once the network of the guest is up.
+   */
+  private static final long SETTLE = TimeUnit.SECONDS.toMillis(
+      Long.getLong(VirtualBoxWarmPool.class.getName() + ".settleSeconds", 10));
+
+  private static final long MIN_BACKOFF = 500;
+
+  private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * Agents of cloud nodes connect by themselves, so there is no launcher to probe for.
+   */
+  private static final VirtualBoxReadinessProbe READY = new VirtualBoxReadinessProbe.GuestAddress();
+
+  private final VirtualBoxCloud host;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  VirtualBoxWarmPool(VirtualBoxCloud host) {
+    this.host = host;
+  }
+
+  /**
+   * @return whether the machine can be restored instead of booted
+   */
+  boolean isWarm(String virtualMachineName) {
+    VirtualBoxMachine machine = host.getVirtualMachine(virtualMachineName);
+    return null != machine && ("Saved".equals(machine.getState()) || "Paused".equals(machine.getState()));
+  }
+
+  /**
+   * Counts a provisioned agent of a template kept warm.
+   */
+  void claimed(VirtualBoxTemplate template, boolean warm) {
+    if (!template.isKeepWarm()) {
+      return;
+    }
+    if (warm) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    LOG.log(Level.FINE, "Warm pool of {0}: {1} hits, {2} misses", new Object[]{host.getDisplayName(), hits, misses});
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return share of agents of templates kept warm which were restored instead of booted, 0 if none
+   */
+  double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return 0 == total ? 0 : (double) h / total;
+  }
+
+  /**
+   * Warms the cold machines of all templates kept warm which are not in use.
+   */
+  void refill() {
+    List<VirtualBoxTemplate> cold = new ArrayList<>();
+    for (VirtualBoxTemplate template : host.getTemplates()) {
+      if (template.isKeepWarm() && !template.isLinkedClone() && !isWarm(template.getVirtualMachineName())
+          && host.reserve(template.getVirtualMachineName(), template.getVirtualMachineName())) {
+        cold.add(template);
+      }
+    }
+    for (VirtualBoxTemplate template : cold) {
+      Computer.threadPoolForRemoting.submit(() -> {
+        try {
+          warm(template);
+        } finally {
+          host.release(template.getVirtualMachineName());
+        }
+      });
+    }
+  }
+
+  private void warm(VirtualBoxTemplate template) {
+    VirtualBoxMachine machine = host.getVirtualMachine(template.getVirtualMachineName());
+    if (null == machine || "Running".equals(machine.getState())) {
+      // gone, or running for someone else
+      return;
+    }
+    VirtualBoxSystemLog log = new VirtualBoxSystemLog(LOG, "[VirtualBox] ");
+    try {
+      LOG.log(Level.INFO, "Warming up {0}", machine.getName());
+      if (VirtualBoxUtils.startVmAsync(machine, template.getVirtualMachineType(), log).get() != 0) {
+        return;
+      }
+      awaitReady(machine, log);
+      if (VirtualBoxUtils.stopVmAsync(machine, "save", log).get() == 0) {
+        LOG.log(Level.INFO, "{0} is warm", machine.getName());
+      }
+      // the next provisioning should see the new state
+      host.refreshVirtualMachinesList();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Unable to warm up " + machine.getName(), e);
+    }
+  }
+
+  /**
+   * Waits until the guest reports its address and then a little longer, or at most {@link #WARMUP}.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private static void awaitReady(VirtualBoxMachine machine, VirtualBoxLogger log) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + WARMUP;
+    long backoff = MIN_BACKOFF;
+    while (true) {
+      // guest property changes wake us up early
+      long seen = VirtualBoxUtils.getChangeCount(machine);
+      if (READY.isReady(machine, log)) {
+        Thread.sleep(Math.min(SETTLE, Math.max(0, deadline - System.currentTimeMillis())));
+        return;
+      }
+      long now = System.currentTimeMillis();
+      if (now >= deadline) {
+        LOG.log(Level.INFO, "{0} did not report {1}, saving it anyway", new Object[]{machine.getName(), READY});
+        return;
+      }
+      VirtualBoxUtils.awaitChange(machine, seen, Math.min(backoff, deadline - now));
+      backoff = Math.min(backoff * 2, MAX_BACKOFF);
+    }
+  }
+
+  /**
+   * Refills the warm pools of all clouds.
+   */
+  @Extension
+  public static class Refill extends PeriodicWork {
+    @Override
+    public long getRecurrencePeriod() {
+      return MIN;
+    }
+
+    @Override
+    protected void doRun() {
+      for (VirtualBoxCloud host : VirtualBoxPlugin.getHosts()) {
+        host.getWarmPool().refill();
+      }
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link VirtualBoxCloud} whose machines are kept in memory instead of on a VirtualBox host. Its connections are
+ * {@link FakeVirtualBoxControl}s, which take as long as a real host would.
+ */
+class FakeVirtualBoxCloud extends VirtualBoxCloud {
+
+  /**
+   * Logger which drops everything, so that logging does not show up in the measurements.
+   */
+  static final VirtualBoxLogger QUIET = new VirtualBoxLogger() {
+    public void logInfo(String message) {
+    }
+
+    public void logWarning(String message) {
+    }
+
+    public void logError(String message) {
+    }
+
+    public void logFatalError(String message) {
+    }
+  };
+
+  /**
+   * Kept, so that its level sticks. The boot slots alone log whenever they adapt, which is all the time here.
+   */
+  private static final Logger PLUGIN_LOG = Logger.getLogger("hudson.plugins.virtualbox");
+
+  static {
+    PLUGIN_LOG.setLevel(Level.WARNING);
+  }
+
+  private static final AtomicInteger HOSTS = new AtomicInteger();
+
+  private final long callMicros;
+  private final long powerMillis;
+  private final AtomicInteger macAddresses = new AtomicInteger();
+  private final ConcurrentMap<String, Machine> machines = new ConcurrentSkipListMap<>();
+  private final AtomicInteger powering = new AtomicInteger();
+
+  /**
+   * Power operations do not finish before this opens, null if they are not held back.
+   */
+  private volatile CountDownLatch gate;
+
+  /**
+   * @param connectionPoolSize number of connections to the host
+   * @param machineCount       number of powered off machines on the host, named {@code machine-0} and so on
+   * @param callMicros         time every call to the host takes, in microseconds
+   * @param powerMillis        time the host takes to power up, power down or save the state of a machine
+   */
+  FakeVirtualBoxCloud(int connectionPoolSize, int machineCount, long callMicros, long powerMillis) {
+    this("benchmark-" + HOSTS.incrementAndGet(), connectionPoolSize, machineCount, callMicros, powerMillis);
+  }
+
+  private FakeVirtualBoxCloud(String name, int connectionPoolSize, int machineCount, long callMicros,
+                              long powerMillis) {
+    super(name, "http://" + name + ":18083", "benchmark", null, -1, connectionPoolSize);
+    this.callMicros = callMicros;
+    this.powerMillis = powerMillis;
+    for (int i = 0; i < machineCount; i++) {
+      addMachine("machine-" + i);
+    }
+  }
+
+  @Override
+  VirtualBoxControlPool.Connector getConnector() {
+    return (host, locks, events, log) -> new FakeVirtualBoxControl(this, locks, events);
+  }
+
+  long getPowerMillis() {
+    return powerMillis;
+  }
+
+  /**
+   * Keeps power operations from finishing until {@link #releasePower()}, so that tests see which ones run at once.
+   */
+  void holdPower() {
+    gate = new CountDownLatch(1);
+  }
+
+  void releasePower() {
+    CountDownLatch held = gate;
+    gate = null;
+    if (null != held) {
+      held.countDown();
+    }
+  }
+
+  /**
+   * @return whether power operations may finish
+   */
+  boolean isPowerReleased() {
+    CountDownLatch held = gate;
+    return null == held || 0 == held.getCount();
+  }
+
+  /**
+   * Waits until power operations may finish.
+   */
+  void awaitPowerReleased() {
+    CountDownLatch held = gate;
+    if (null == held) {
+      return;
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        held.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return number of power operations which began and did not finish yet
+   */
+  AtomicInteger getPowering() {
+    return powering;
+  }
+
+  /**
+   * Waits as long as a call to the host takes.
+   */
+  void call() {
+    pause(TimeUnit.MICROSECONDS.toNanos(callMicros));
+  }
+
+  Machine getMachine(String name) {
+    return machines.get(name);
+  }
+
+  /**
+   * @return snapshots of all machines, like one inventory pass over a real host
+   */
+  List<VirtualBoxMachine> snapshot() {
+    List<VirtualBoxMachine> result = new ArrayList<>();
+    for (Machine machine : machines.values()) {
+      result.add(machine.snapshot());
+    }
+    return result;
+  }
+
+  Machine addMachine(String name) {
+    Machine machine = new Machine(name, UUID.randomUUID().toString(),
+        String.format("080027%06X", macAddresses.getAndIncrement()));
+    machines.put(name, machine);
+    return machine;
+  }
+
+  Machine removeMachine(String name) {
+    return machines.remove(name);
+  }
+
+  static void pause(long nanos) {
+    long deadline = System.nanoTime() + nanos;
+    long left = nanos;
+    while (left > 0) {
+      LockSupport.parkNanos(left);
+      left = deadline - System.nanoTime();
+    }
+  }
+
+  /**
+   * Machine on the host.
+   */
+  final class Machine {
+    private final String name;
+    private final String id;
+    private final String macAddress;
+    private volatile String state = "PoweredOff";
+    private volatile long lastStateChange = System.currentTimeMillis();
+
+    private Machine(String name, String id, String macAddress) {
+      this.name = name;
+      this.id = id;
+      this.macAddress = macAddress;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    String getMacAddress() {
+      return macAddress;
+    }
+
+    String getState() {
+      return state;
+    }
+
+    void setState(String state) {
+      this.state = state;
+      this.lastStateChange = System.currentTimeMillis();
+    }
+
+    VirtualBoxMachine snapshot() {
+      return new VirtualBoxMachine(FakeVirtualBoxCloud.this, name, id, state, "Unlocked",
+          Collections.singletonList(macAddress), 1024, 1, "Ubuntu_64", lastStateChange);
+    }
+  }
+}
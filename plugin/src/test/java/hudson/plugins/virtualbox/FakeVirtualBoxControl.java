@@ -0,0 +1,131 @@
+package hudson.plugins.virtualbox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Connection to a {@link FakeVirtualBoxCloud}.
+ * <p>
+ * Like the connections to a real host, every call takes the latency of the host, and starts and stops hold the
+ * lock of the machine until the host finished powering it up or down.
+ * </p>
+ */
+final class FakeVirtualBoxControl implements VirtualBoxControl {
+
+  private final FakeVirtualBoxCloud host;
+  private final VirtualBoxMachineLocks locks;
+  private final VirtualBoxEvents events;
+  private volatile boolean connected = true;
+
+  FakeVirtualBoxControl(FakeVirtualBoxCloud host, VirtualBoxMachineLocks locks, VirtualBoxEvents events) {
+    this.host = host;
+    this.locks = locks;
+    this.events = events;
+  }
+
+  public VirtualBoxOperation beginStartVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log) {
+    return power(machine, "Running");
+  }
+
+  public VirtualBoxOperation beginStopVm(VirtualBoxMachine machine, String virtualMachineStopMode,
+                                         VirtualBoxLogger log) {
+    return power(machine, "powerdown".equals(virtualMachineStopMode) ? "PoweredOff" : "Saved");
+  }
+
+  private VirtualBoxOperation power(VirtualBoxMachine vbMachine, String targetState) {
+    host.call();
+    FakeVirtualBoxCloud.Machine machine = host.getMachine(vbMachine.getName());
+    if (null == machine) {
+      return VirtualBoxOperation.completed(1);
+    }
+    try {
+      locks.lock(machine.getName());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return VirtualBoxOperation.completed(1);
+    }
+    if (targetState.equals(machine.getState())) {
+      locks.unlock(machine.getName());
+      return VirtualBoxOperation.completed(0);
+    }
+    final long done = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(host.getPowerMillis());
+    host.getPowering().incrementAndGet();
+    return new VirtualBoxOperation() {
+      public boolean isDone() {
+        return System.nanoTime() - done >= 0 && host.isPowerReleased();
+      }
+
+      public void await() {
+        FakeVirtualBoxCloud.pause(done - System.nanoTime());
+        host.awaitPowerReleased();
+      }
+
+      public long finish() {
+        host.getPowering().decrementAndGet();
+        machine.setState(targetState);
+        locks.unlock(machine.getName());
+        events.fire(machine.getId());
+        return 0;
+      }
+    };
+  }
+
+  public List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
+    this.host.call();
+    return this.host.snapshot();
+  }
+
+  public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log) {
+    host.call();
+    return new VirtualBoxHostLoad(65536, 32768, 16);
+  }
+
+  public String cloneVm(VirtualBoxMachine machine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+    host.call();
+    if (null == host.getMachine(machine.getName())) {
+      return null;
+    }
+    return host.addMachine(cloneName).getId();
+  }
+
+  public long destroyVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    host.call();
+    return null == host.removeMachine(machine.getName()) ? 1 : 0;
+  }
+
+  public String getMacAddress(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    host.call();
+    FakeVirtualBoxCloud.Machine found = host.getMachine(machine.getName());
+    return null == found ? null : found.getMacAddress();
+  }
+
+  public String getGuestProperty(VirtualBoxMachine machine, String name, VirtualBoxLogger log) {
+    host.call();
+    return null;
+  }
+
+  public void disconnect() {
+    connected = false;
+  }
+
+  public boolean isConnected() {
+    host.call();
+    return connected;
+  }
+
+  /**
+   * Keeps the events of the pool active until interrupted. State changes are fired by the connection which made
+   * them; registrations are not fired, as they would need Jenkins, so clones show up with the next inventory pass.
+   */
+  public void pumpEvents() {
+    events.setActive(true);
+    try {
+      while (connected && !Thread.currentThread().isInterrupted()) {
+        LockSupport.park(this);
+      }
+    } finally {
+      events.setActive(false);
+    }
+  }
+}
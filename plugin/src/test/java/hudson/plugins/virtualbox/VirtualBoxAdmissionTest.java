@@ -0,0 +1,72 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VirtualBoxAdmissionTest {
+
+  @Test
+  public void permitsAreHeldOncePerMachine() throws Exception {
+    VirtualBoxAdmission admission = new VirtualBoxAdmission(2, TimeUnit.SECONDS.toMillis(1));
+
+    assertEquals(VirtualBoxAdmission.Result.ADMITTED, admission.acquire("vm-1"));
+    assertEquals(VirtualBoxAdmission.Result.ALREADY_ADMITTED, admission.acquire("vm-1"));
+    assertEquals(1, admission.getAvailable());
+
+    admission.release("vm-1");
+    admission.release("vm-1");
+    assertEquals(2, admission.getAvailable());
+  }
+
+  @Test
+  public void limitHoldsUnderRepeatedStops() throws Exception {
+    VirtualBoxAdmission admission = new VirtualBoxAdmission(1, 200);
+
+    assertEquals(VirtualBoxAdmission.Result.ADMITTED, admission.acquire("vm-1"));
+    // a stop which is reported twice must not make room for two machines
+    admission.release("vm-2");
+    assertEquals(VirtualBoxAdmission.Result.TIMED_OUT, admission.acquire("vm-2"));
+    assertEquals(1, admission.getTimedOut());
+    assertEquals(0, admission.getQueueLength());
+  }
+
+  @Test
+  public void waitersAreAdmittedInOrder() throws Exception {
+    VirtualBoxAdmission admission = new VirtualBoxAdmission(1, TimeUnit.SECONDS.toMillis(10));
+    admission.acquire("vm-0");
+
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      String machine = "vm-" + i;
+      Thread thread = new Thread(() -> {
+        try {
+          admission.acquire(machine);
+          order.add(machine);
+          admission.release(machine);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+      // queue the threads one after the other
+      while (admission.getQueueLength() < i) {
+        Thread.sleep(10);
+      }
+    }
+    admission.release("vm-0");
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(Arrays.asList("vm-1", "vm-2", "vm-3"), order);
+  }
+}
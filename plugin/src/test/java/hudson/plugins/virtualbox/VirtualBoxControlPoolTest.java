@@ -0,0 +1,36 @@
+package hudson.plugins.virtualbox;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VirtualBoxControlPoolTest {
+
+  @After
+  public void tearDown() {
+    VirtualBoxUtils.disconnectAll();
+    VirtualBoxMetrics.get().unregisterAll();
+  }
+
+  /**
+   * The stop keeps the machine locked until it finishes on its pinned connection, so a start which got that
+   * connection would wait for the lock forever.
+   */
+  @Test
+  public void startWaitsForStopInProgress() throws Exception {
+    FakeVirtualBoxCloud host = new FakeVirtualBoxCloud(1, 1, 0, 300);
+    VirtualBoxMachine machine = host.getVirtualMachines().get(0);
+
+    CompletableFuture<Long> stop = VirtualBoxUtils.stopVmAsync(machine, "save", FakeVirtualBoxCloud.QUIET);
+    CompletableFuture<Long> start = CompletableFuture.supplyAsync(
+        () -> VirtualBoxUtils.startVmAsync(machine, "headless", FakeVirtualBoxCloud.QUIET).join());
+
+    assertEquals(0L, (long) stop.get(10, TimeUnit.SECONDS));
+    assertEquals(0L, (long) start.get(10, TimeUnit.SECONDS));
+    assertEquals("Running", host.getMachine(machine.getName()).getState());
+  }
+}
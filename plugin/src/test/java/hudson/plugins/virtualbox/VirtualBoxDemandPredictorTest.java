@@ -0,0 +1,68 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualBoxDemandPredictorTest {
+
+  @Test
+  public void slotsArePeaksOfPastHours() {
+    VirtualBoxDemandPredictor.Histogram histogram = new VirtualBoxDemandPredictor.Histogram();
+    assertTrue(histogram.observe(3, 2));
+    assertFalse(histogram.observe(3, 5));
+    assertFalse(histogram.observe(3, 1));
+    assertEquals(0, histogram.predict(3), 0);
+
+    assertTrue(histogram.observe(4, 0));
+    assertEquals(5, histogram.predict(3), 0);
+    assertEquals(0, histogram.predict(5), 0);
+  }
+
+  @Test
+  public void slotsDecayOverWeeks() {
+    VirtualBoxDemandPredictor.Histogram histogram = new VirtualBoxDemandPredictor.Histogram();
+    histogram.observe(3, 4);
+    histogram.observe(4, 0);
+    histogram.observe(3, 2);
+    histogram.observe(4, 0);
+
+    assertEquals(3, histogram.predict(3), 0.001);
+  }
+
+  @Test
+  public void quietHistogramsAreNegligible() {
+    VirtualBoxDemandPredictor.Histogram histogram = new VirtualBoxDemandPredictor.Histogram();
+    assertTrue(histogram.isNegligible());
+
+    histogram.observe(3, 1);
+    assertFalse(histogram.isNegligible());
+    histogram.observe(4, 0);
+    assertFalse(histogram.isNegligible());
+
+    for (int week = 0; week < 5; week++) {
+      histogram.observe(3, 0);
+      histogram.observe(4, 0);
+    }
+    assertTrue(histogram.isNegligible());
+  }
+
+  @Test
+  public void slotsAreHoursOfTheWeek() {
+    assertEquals(0, VirtualBoxDemandPredictor.slotOf(at(Calendar.SUNDAY, 0, 30)));
+    assertEquals(26, VirtualBoxDemandPredictor.slotOf(at(Calendar.MONDAY, 2, 0)));
+    assertEquals(7 * 24 - 1, VirtualBoxDemandPredictor.slotOf(at(Calendar.SATURDAY, 23, 59)));
+  }
+
+  private static long at(int dayOfWeek, int hour, int minute) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.set(Calendar.DAY_OF_WEEK, dayOfWeek);
+    calendar.set(Calendar.HOUR_OF_DAY, hour);
+    calendar.set(Calendar.MINUTE, minute);
+    return calendar.getTimeInMillis();
+  }
+}
@@ -0,0 +1,38 @@
+package hudson.plugins.virtualbox;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualBoxEventsTest {
+
+  @Test
+  public void unregisteredMachinesAreForgotten() {
+    VirtualBoxEvents events = new VirtualBoxEvents();
+    for (int i = 0; i < 100; i++) {
+      String clone = "clone-" + i;
+      events.fireRegistered(clone, "agent-" + i, true);
+      events.fire(clone);
+      events.fireRegistered(clone, null, false);
+    }
+    events.fire("template");
+
+    assertEquals(1, events.size());
+  }
+
+  @Test
+  public void countsNeverGoBack() {
+    VirtualBoxEvents events = new VirtualBoxEvents();
+    events.fireRegistered("machine", "agent", true);
+    events.fire("machine");
+    long generation = events.getGeneration("machine");
+    long changes = events.getChanges("machine");
+
+    events.fireRegistered("machine", null, false);
+
+    assertTrue(events.getGeneration("machine") > generation);
+    assertTrue(events.getChanges("machine") > changes);
+    assertTrue(events.getChanges("other") > 0);
+  }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VirtualBoxMachineLocksTest {
+
+  private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+  @After
+  public void tearDown() {
+    VirtualBoxUtils.disconnectAll();
+    VirtualBoxMetrics.get().unregisterAll();
+  }
+
+  @Test
+  public void startsOfDifferentMachinesOverlap() throws Exception {
+    FakeVirtualBoxCloud host = new FakeVirtualBoxCloud(8, 8, 0, 0);
+    host.holdPower();
+    List<CompletableFuture<Long>> starts = new ArrayList<>();
+    for (VirtualBoxMachine machine : host.getVirtualMachines()) {
+      starts.add(start(machine));
+    }
+
+    // none can finish before the release, so all of them hold their machine lock at once
+    awaitPowering(host, 8);
+    host.releasePower();
+
+    for (CompletableFuture<Long> start : starts) {
+      assertEquals(0L, (long) start.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    assertEquals(0, host.getPowering().get());
+  }
+
+  @Test
+  public void operationsOfSameMachineAreSerialized() throws Exception {
+    FakeVirtualBoxCloud host = new FakeVirtualBoxCloud(2, 1, 0, 0);
+    VirtualBoxMachine machine = host.getVirtualMachines().get(0);
+    host.holdPower();
+    CompletableFuture<Long> start = start(machine);
+    awaitPowering(host, 1);
+    Thread[] stopper = new Thread[1];
+    CompletableFuture<Long> stop = CompletableFuture.supplyAsync(() -> {
+      stopper[0] = Thread.currentThread();
+      return VirtualBoxUtils.stopVm(machine, "powerdown", FakeVirtualBoxCloud.QUIET);
+    });
+
+    // the stop waits for the lock of the machine while the start holds it
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while ((null == stopper[0] || Thread.State.WAITING != stopper[0].getState())
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.WAITING, stopper[0].getState());
+    assertEquals(1, host.getPowering().get());
+    host.releasePower();
+
+    assertEquals(0L, (long) start.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertEquals(0L, (long) stop.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    assertEquals("PoweredOff", host.getMachine(machine.getName()).getState());
+  }
+
+  @Test
+  public void locksOfIdleMachinesAreDropped() throws Exception {
+    VirtualBoxMachineLocks locks = new VirtualBoxMachineLocks();
+    for (int i = 0; i < 100; i++) {
+      locks.lock("clone-" + i);
+      locks.unlock("clone-" + i);
+    }
+    locks.lock("template");
+
+    assertEquals(1, locks.size());
+  }
+
+  private static CompletableFuture<Long> start(VirtualBoxMachine machine) {
+    return CompletableFuture.supplyAsync(() -> VirtualBoxUtils.startVm(machine, "headless", FakeVirtualBoxCloud.QUIET));
+  }
+
+  private static void awaitPowering(FakeVirtualBoxCloud host, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (host.getPowering().get() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, host.getPowering().get());
+  }
+}
@@ -0,0 +1,56 @@
+package hudson.plugins.virtualbox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VirtualBoxMetricsTest {
+
+  @After
+  public void unregister() {
+    VirtualBoxMetrics.get().unregisterAll();
+  }
+
+  @Test
+  public void bucketsHoldTheirLatencies() {
+    for (long micros = 0; micros < 1 << 20; micros += 1 + micros / 7) {
+      int bucket = VirtualBoxMetrics.Operation.bucketOf(micros);
+      assertTrue(micros + " above bucket " + bucket, micros <= VirtualBoxMetrics.Operation.upperBound(bucket));
+      assertTrue(micros + " below bucket " + bucket,
+          0 == bucket || micros > VirtualBoxMetrics.Operation.upperBound(bucket - 1));
+    }
+  }
+
+  @Test
+  public void percentilesAreWithinAQuarter() {
+    VirtualBoxMetrics.Host host = VirtualBoxMetrics.get().host("test");
+    for (int millis = 1; millis <= 1000; millis++) {
+      host.record("startVm", TimeUnit.MILLISECONDS.toNanos(millis), 0 == millis % 100);
+    }
+    VirtualBoxMetrics.Operation operation = host.operation("startVm");
+
+    assertEquals(1000, operation.getCount());
+    assertEquals(10, operation.getErrors());
+    assertEquals(500, operation.getP50Millis(), 125);
+    assertEquals(950, operation.getP95Millis(), 238);
+    assertEquals(1000, operation.getMaxMillis(), 0.001);
+  }
+
+  @Test
+  public void detachedMetricsAreNeitherKeptNorExposed() throws Exception {
+    VirtualBoxMetrics.Host host = VirtualBoxMetrics.detached();
+    host.record("getMachines", TimeUnit.MILLISECONDS.toNanos(1), false);
+
+    assertEquals(1, host.operation("getMachines").getCount());
+    assertTrue(VirtualBoxMetrics.get().getHosts().isEmpty());
+    assertTrue(ManagementFactory.getPlatformMBeanServer()
+        .queryNames(new ObjectName(VirtualBoxMetrics.DOMAIN + ":*"), null).isEmpty());
+  }
+}